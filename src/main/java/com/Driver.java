@@ -1,19 +1,41 @@
 package com;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.regex.Pattern;
 
 import com.Sweep.Sweep;
 import com.args.ArgumentParser;
+import com.crawler.BloomVisitedSet;
+import com.crawler.CrawlCheckpoint;
+import com.crawler.ExactVisitedSet;
+import com.crawler.HtmlBodyHandler;
+import com.crawler.HostScheduler;
+import com.crawler.HtmlFetcher;
+import com.crawler.HttpsFetcher;
+import com.crawler.UrlCanonicalizer;
+import com.crawler.UrlScorer;
+import com.crawler.ValidatorCache;
+import com.crawler.VisitedSet;
 import com.crawler.WebCrawler;
 import com.crawler.WebCrawler.CrawlResult;
 import com.io.JsonIO;
+import com.io.ScrapeResultWriter;
 import com.io.SweepRunIO;
-import com.scraper.ConfigField;
 import com.scraper.ProductScraper;
+import com.scraper.ScrapePipeline;
 import com.scraper.ScrapeResult;
+import com.scraper.ScraperConfig;
+import com.threading.QueueMetrics;
+import com.threading.TaskQueue;
+import com.threading.VirtualWorkQueue;
 import com.threading.WorkQueue;
+import com.threading.WorkStealingQueue;
 
 public class Driver {
 	public static final String SEED_FLAG = "-seed";
@@ -28,6 +50,30 @@ public class Driver {
 	public static final String THREADED_SCRAPER = "-threadedScraper";
 	public static final String SWEEP_RUN_DIR = "-sweepRunDir";
 	public static final String SWEEP_RESULTS_DIR = "-sweepResultsDir";
+	public static final String CONNECT_TIMEOUT_FLAG = "-connectTimeout";
+	public static final String REQUEST_TIMEOUT_FLAG = "-requestTimeout";
+	public static final String FETCH_THREADS_FLAG = "-fetchThreads";
+	public static final String ASYNC_FLAG = "-async";
+	public static final String MAX_IN_FLIGHT_FLAG = "-maxInFlight";
+	public static final String MAX_PAGE_BYTES_FLAG = "-maxPageBytes";
+	public static final String CACHE_DIR_FLAG = "-cacheDir";
+	public static final String HOST_RATE_FLAG = "-hostRate";
+	public static final String HOST_BURST_FLAG = "-hostBurst";
+	public static final String DROP_PARAMS_FLAG = "-dropParams";
+	public static final String KEEP_PARAM_ORDER_FLAG = "-keepParamOrder";
+	public static final String APPROX_DEDUP_FLAG = "-approxDedup";
+	public static final String DEDUP_FPP_FLAG = "-dedupFpp";
+	public static final String CHECKPOINT_DIR_FLAG = "-checkpointDir";
+	public static final String CHECKPOINT_INTERVAL_FLAG = "-checkpointInterval";
+	public static final String RESUME_FLAG = "-resume";
+	public static final String PRIORITY_FLAG = "-priority";
+	public static final String MAX_DURATION_FLAG = "-maxDuration";
+	public static final String VIRTUAL_THREADS_FLAG = "-virtualThreads";
+	public static final String WORK_STEALING_FLAG = "-workStealing";
+	public static final String QUEUE_CAPACITY_FLAG = "-queueCapacity";
+	public static final String QUEUE_POLICY_FLAG = "-queuePolicy";
+	public static final String MAX_THREADS_FLAG = "-maxThreads";
+	public static final String PIPELINE_FLAG = "-pipeline";
 	
 	public static void main(String[] args) {
 		String sweepRunId = UUID.randomUUID().toString() + "_run";
@@ -35,85 +81,189 @@ public class Driver {
 		
 		String sweepRunPath = null;
 		String sweepResultsPath = null;
+		List<String> runStats = new ArrayList<>();
 		long startTime = System.currentTimeMillis();
 		try {
 			// Parse arguments
 			ArgumentParser argumentParser = new ArgumentParser(args);
 			String sweepConfig = argumentParser.getString(SWEEP_CONFIG, null);
-			String seed;
-			String base;
-			String routeRegex;
-			String scraperConfig;
-			String sweepRunDir;
-			String sweepResultsDir;
-			boolean threadedScraper;
-			int maxUrls;
-			int threads;
-			
+			ArgumentParser sweepArgumentParser = argumentParser;
 			Sweep sweep = null;
 			
+			// If resuming, keep the run id so the checkpoint and run file are found again
+			String resumeRunId = argumentParser.getString(RESUME_FLAG, null);
+			if (resumeRunId != null) {
+				sweepRunId = resumeRunId;
+			}
+			
 			// If sweep config provided, then read arguments and scraper fields from there
 			if (sweepConfig != null) {
 				System.out.println("Sweep config provided. Reading args from sweep file");
 				sweep = JsonIO.readSweepConfig(sweepConfig);
 				System.out.println("Sweep name: " + sweep.getName());
-				ArgumentParser configArgumentParser = new ArgumentParser(sweep.getArgs());
-				seed = configArgumentParser.getString(SEED_FLAG, null);
-				base = configArgumentParser.getString(URL_BASE_FLAG, "http");
-				routeRegex = configArgumentParser.getString(MATCH_FLAG, null);
-				scraperConfig = configArgumentParser.getString(SCRAPER_CONFIG, null);
-				sweepRunDir = configArgumentParser.getString(SWEEP_RUN_DIR, null);
-				sweepResultsDir = configArgumentParser.getString(SWEEP_RESULTS_DIR, null);
-				threadedScraper = configArgumentParser.hasFlag(THREADED_SCRAPER);
-				maxUrls = configArgumentParser.getInteger(MAX_URLS_FLAG, WebCrawler.MAX_URLS_DEFAULT);
-				threads = configArgumentParser.getInteger(THREADS_FLAG, WorkQueue.DEFAULT);	
-			} else {
-				seed = argumentParser.getString(SEED_FLAG, null);
-				base = argumentParser.getString(URL_BASE_FLAG, "http");
-				routeRegex = argumentParser.getString(MATCH_FLAG, null);
-				scraperConfig = argumentParser.getString(SCRAPER_CONFIG, null);
-				sweepRunDir = argumentParser.getString(SWEEP_RUN_DIR, null);
-				sweepResultsDir = argumentParser.getString(SWEEP_RESULTS_DIR, null);
-				threadedScraper = argumentParser.hasFlag(THREADED_SCRAPER);
-				maxUrls = argumentParser.getInteger(MAX_URLS_FLAG, WebCrawler.MAX_URLS_DEFAULT);
-				threads = argumentParser.getInteger(THREADS_FLAG, WorkQueue.DEFAULT);	
+				sweepArgumentParser = new ArgumentParser(sweep.getArgs());
 			}
+			
+			String seed = sweepArgumentParser.getString(SEED_FLAG, null);
+			String base = sweepArgumentParser.getString(URL_BASE_FLAG, "http");
+			String routeRegex = sweepArgumentParser.getString(MATCH_FLAG, null);
+			String scraperConfig = sweepArgumentParser.getString(SCRAPER_CONFIG, null);
+			String sweepRunDir = sweepArgumentParser.getString(SWEEP_RUN_DIR, null);
+			String sweepResultsDir = sweepArgumentParser.getString(SWEEP_RESULTS_DIR, null);
+			boolean threadedScraper = sweepArgumentParser.hasFlag(THREADED_SCRAPER);
+			boolean pipeline = sweepArgumentParser.hasFlag(PIPELINE_FLAG);
+			int maxUrls = sweepArgumentParser.getInteger(MAX_URLS_FLAG, WebCrawler.MAX_URLS_DEFAULT);
+			int maxResults = sweepArgumentParser.getInteger(MAX_RESULTS_FLAG, 0);
+			int maxDuration = sweepArgumentParser.getInteger(MAX_DURATION_FLAG, 0);
+			boolean virtualThreads = sweepArgumentParser.hasFlag(VIRTUAL_THREADS_FLAG);
+			boolean workStealing = sweepArgumentParser.hasFlag(WORK_STEALING_FLAG);
+			int queueCapacity = sweepArgumentParser.getInteger(QUEUE_CAPACITY_FLAG, WorkQueue.UNBOUNDED);
+			WorkQueue.FullPolicy queuePolicy = WorkQueue.FullPolicy.valueOf(sweepArgumentParser.getString(QUEUE_POLICY_FLAG, WorkQueue.FullPolicy.BLOCK.name()).toUpperCase());
+			int threads = sweepArgumentParser.getInteger(THREADS_FLAG, virtualThreads ? VirtualWorkQueue.LIMIT_DEFAULT : WorkQueue.DEFAULT);
+			int maxThreads = sweepArgumentParser.getInteger(MAX_THREADS_FLAG, 0);
+			boolean adaptive = !virtualThreads && maxThreads > threads;
+			int connectTimeout = sweepArgumentParser.getInteger(CONNECT_TIMEOUT_FLAG, (int) HttpsFetcher.CONNECT_TIMEOUT_DEFAULT.toSeconds());
+			int requestTimeout = sweepArgumentParser.getInteger(REQUEST_TIMEOUT_FLAG, (int) HttpsFetcher.REQUEST_TIMEOUT_DEFAULT.toSeconds());
+			int fetchThreads = sweepArgumentParser.getInteger(FETCH_THREADS_FLAG, HttpsFetcher.THREADS_DEFAULT);
+			boolean async = sweepArgumentParser.hasFlag(ASYNC_FLAG);
+			int maxInFlight = sweepArgumentParser.getInteger(MAX_IN_FLIGHT_FLAG, WebCrawler.MAX_IN_FLIGHT_DEFAULT);
+			int maxPageBytes = sweepArgumentParser.getInteger(MAX_PAGE_BYTES_FLAG, (int) HtmlBodyHandler.MAX_BYTES_DEFAULT);
+			String cacheDir = sweepArgumentParser.getString(CACHE_DIR_FLAG, null);
+			double hostRate = sweepArgumentParser.getDouble(HOST_RATE_FLAG, 0);
+			int hostBurst = sweepArgumentParser.getInteger(HOST_BURST_FLAG, HostScheduler.BURST_DEFAULT);
+			String dropParams = sweepArgumentParser.getString(DROP_PARAMS_FLAG, String.join(",", UrlCanonicalizer.DROP_PARAMS_DEFAULT));
+			boolean keepParamOrder = sweepArgumentParser.hasFlag(KEEP_PARAM_ORDER_FLAG);
+			boolean approxDedup = sweepArgumentParser.hasFlag(APPROX_DEDUP_FLAG);
+			double dedupFpp = sweepArgumentParser.getDouble(DEDUP_FPP_FLAG, BloomVisitedSet.FPP_DEFAULT);
+			boolean priority = sweepArgumentParser.hasFlag(PRIORITY_FLAG);
+			String checkpointDir = sweepArgumentParser.getString(CHECKPOINT_DIR_FLAG, null);
+			int checkpointInterval = sweepArgumentParser.getInteger(CHECKPOINT_INTERVAL_FLAG, (int) CrawlCheckpoint.INTERVAL_DEFAULT.toSeconds());
 
 			if (seed == null || base == null || routeRegex == null) {
 				throw new Exception("Must provide a value for -seed, -base, and -match flags");
 			}
+			if (resumeRunId != null && checkpointDir == null) {
+				throw new Exception("Must provide a value for -checkpointDir to resume a sweep");
+			}
 			
 			System.out.println("Arguments: " + argumentParser.toString());
 			
 			if (sweepRunDir != null) {
 				sweepRunPath = sweepRunDir + "/" + sweepRunId + ".txt";
-				SweepRunIO.initSweepRun(sweepRunPath);
+				if (!Files.exists(Path.of(sweepRunPath))) {
+					SweepRunIO.initSweepRun(sweepRunPath);
+				}
+			}
+
+			HttpsFetcher.configure(Duration.ofSeconds(connectTimeout), Duration.ofSeconds(requestTimeout), fetchThreads);
+			HtmlFetcher.setMaxBytes(maxPageBytes);
+			ValidatorCache cache = null;
+			if (cacheDir != null) {
+				cache = new ValidatorCache(Path.of(cacheDir));
+				HtmlFetcher.setCache(cache);
 			}
 
 			List<CrawlResult> crawlResults = null;
-			WorkQueue queue = new WorkQueue(threads);
-			
-			WebCrawler crawler = new WebCrawler();
+			UrlCanonicalizer canonicalizer = new UrlCanonicalizer(Arrays.asList(dropParams.split(",")), !keepParamOrder);
+			VisitedSet visited = approxDedup ? new BloomVisitedSet(maxUrls, dedupFpp, Pattern.compile(routeRegex)) : new ExactVisitedSet();
+			Duration deadline = maxDuration > 0 ? Duration.ofSeconds(maxDuration) : null;
+			CrawlCheckpoint checkpoint = null;
+			if (checkpointDir != null) {
+				checkpoint = new CrawlCheckpoint(Path.of(checkpointDir, sweepRunId), Duration.ofSeconds(checkpointInterval));
+				System.out.println((checkpoint.exists() ? "Resuming" : "Checkpointing") + " sweep run " + sweepRunId);
+			}
 			
-			System.out.println("Initialized work queue and web crawler");
-			System.out.println("Running web crawler...");
+			// In pipeline mode, result pages are scraped from the crawled html while the crawl runs
+			ScrapePipeline scrapePipeline = null;
+			TaskQueue pipelineQueue = null;
+			ScrapeResultWriter resultWriter = null;
+			if (pipeline && (scraperConfig != null || sweep != null)) {
+				ScraperConfig fields = sweep != null ? sweep.getConfig() : JsonIO.readConfig(scraperConfig);
+				int pipelineCapacity = queueCapacity > 0 ? queueCapacity : ScrapePipeline.CAPACITY_DEFAULT;
+				pipelineQueue = new WorkQueue(adaptive ? 1 : WorkQueue.DEFAULT, maxThreads, pipelineCapacity, queuePolicy);
+				pipelineQueue.getMetrics().register("scraper");
+				if (sweepResultsDir != null) {
+					sweepResultsPath = sweepResultsDir + "/" + sweepResultsId + ".json";
+					System.out.println("Writing sweep results to " + sweepResultsPath + " as they are scraped");
+					resultWriter = new ScrapeResultWriter(sweepResultsPath);
+				}
+				scrapePipeline = new ScrapePipeline(new ProductScraper(), fields, pipelineQueue, resultWriter);
+				System.out.println("Running scraper in pipeline... Capacity=" + pipelineCapacity);
+			}
 			
-			crawlResults = crawler.crawl(seed, base, maxUrls, routeRegex, queue);
-			queue.finish();
-			queue.shutdown();
+			if (async) {
+				HostScheduler scheduler = hostRate > 0 ? new HostScheduler(Runnable::run, hostRate, hostBurst) : null;
+				HtmlFetcher.setScheduler(scheduler);
+				WebCrawler crawler = new WebCrawler(scheduler, canonicalizer, priority ? UrlScorer.LEVELS_DEFAULT : 1, scrapePipeline);
+				
+				System.out.println("Running asynchronous web crawler... MaxInFlight=" + maxInFlight);
+				crawlResults = crawler.crawlAsync(seed, base, maxUrls, routeRegex, maxInFlight, visited, checkpoint, maxResults, deadline).join();
+				if (scheduler != null) {
+					scheduler.shutdown();
+				}
+			} else {
+				TaskQueue queue = virtualThreads ? new VirtualWorkQueue(threads) : workStealing ? new WorkStealingQueue(threads) : new WorkQueue(threads, maxThreads, queueCapacity, queuePolicy);
+				queue.getMetrics().register("crawl");
+				HostScheduler scheduler = hostRate > 0 ? new HostScheduler(queue::execute, hostRate, hostBurst) : null;
+				HtmlFetcher.setScheduler(scheduler);
+				WebCrawler crawler = new WebCrawler(scheduler, canonicalizer, priority ? UrlScorer.LEVELS_DEFAULT : 1, scrapePipeline);
+				
+				System.out.println("Initialized work queue and web crawler... VirtualThreads=" + virtualThreads + " WorkStealing=" + workStealing + " Threads=" + queue.size() + (adaptive && !workStealing ? " MaxThreads=" + maxThreads : ""));
+				System.out.println("Running web crawler...");
+				
+				crawlResults = crawler.crawl(seed, base, maxUrls, routeRegex, queue, visited, checkpoint, maxResults, deadline);
+				if (scheduler != null) {
+					scheduler.finish(queue);
+					scheduler.shutdown();
+				} else {
+					queue.finish();
+				}
+				queue.shutdown();
+				queue.getMetrics().unregister();
+				QueueMetrics.Snapshot metrics = queue.getMetrics().snapshot();
+				runStats.addAll(metrics.getStats("crawlQueue"));
+				System.out.println("Crawl queue: " + metrics);
+			}
 			
 			System.out.println("Crawl finished. Total results: " + crawlResults.size());
+			runStats.addAll(visited.getStats());
+			if (checkpoint != null) {
+				checkpoint.delete();
+			}
+			System.out.println("Visited set: " + String.join(" ", visited.getStats()));
 			
-			if (scraperConfig != null || sweep != null) {
-				List<ConfigField> fields = sweep != null ? sweep.getFields() : JsonIO.readConfig(scraperConfig);
+			if (cache != null) {
+				cache.save();
+				runStats.addAll(cache.getStats());
+				System.out.println("Cache hit rate: " + cache.getHitRate());
+			}
+			
+			if (scrapePipeline != null) {
+				scrapePipeline.finish(crawlResults);
+				pipelineQueue.shutdown();
+				pipelineQueue.getMetrics().unregister();
+				if (resultWriter != null) {
+					resultWriter.close();
+				}
+				QueueMetrics.Snapshot metrics = pipelineQueue.getMetrics().snapshot();
+				runStats.addAll(metrics.getStats("scraperQueue"));
+				System.out.println("Scraper queue: " + metrics);
+				System.out.println("Scrape finished. Total results: " + scrapePipeline.getResultCount());
+			} else if (scraperConfig != null || sweep != null) {
+				ScraperConfig fields = sweep != null ? sweep.getConfig() : JsonIO.readConfig(scraperConfig);
 				ProductScraper scraper = new ProductScraper();
 				List<ScrapeResult> scrapeResults = new ArrayList<>();
 				System.out.println("Running scraper... Threaded=" + threadedScraper);
 				if (threadedScraper) {
-					WorkQueue scraperQueue = new WorkQueue(5);
+					TaskQueue scraperQueue = virtualThreads ? new VirtualWorkQueue(threads) : new WorkQueue(adaptive ? 1 : WorkQueue.DEFAULT, maxThreads, queueCapacity, queuePolicy);
+					scraperQueue.getMetrics().register("scraper");
 					scraper.scrape(crawlResults, fields, scrapeResults, scraperQueue);
 					scraperQueue.finish();
 					scraperQueue.shutdown();
+					scraperQueue.getMetrics().unregister();
+					QueueMetrics.Snapshot metrics = scraperQueue.getMetrics().snapshot();
+					runStats.addAll(metrics.getStats("scraperQueue"));
+					System.out.println("Scraper queue: " + metrics);
 				} else {
 					scraper.scrape(crawlResults, fields, scrapeResults);
 				}
@@ -129,11 +279,15 @@ public class Driver {
 			
 			if (sweepRunPath != null && sweepResultsId != null && sweepResultsPath != null) {
 				System.out.println("Completing sweep. Writing run output to " + sweepRunPath);
-				SweepRunIO.completeSweepRun(sweepRunPath, sweepRunId, startTime, "Success", sweepResultsPath);
+				SweepRunIO.completeSweepRun(sweepRunPath, sweepRunId, startTime, "Success", sweepResultsPath, runStats);
 			}
 		} catch (Exception e) {
-			SweepRunIO.completeSweepRun(sweepRunPath, sweepRunId, startTime, "Failure", sweepResultsPath);
+			SweepRunIO.completeSweepRun(sweepRunPath, sweepRunId, startTime, "Failure", sweepResultsPath, runStats);
 			System.out.println("Failed: " + e.getMessage());
+		} finally {
+			HtmlFetcher.setCache(null);
+			HtmlFetcher.setScheduler(null);
+			HttpsFetcher.shutdown();
 		}
 	}
 }
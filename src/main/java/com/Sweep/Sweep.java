@@ -3,11 +3,14 @@ package com.Sweep;
 import java.util.List;
 
 import com.scraper.ConfigField;
+import com.scraper.ScraperConfig;
 
 public class Sweep {
 	private String name;
 	private String args;
 	private List<ConfigField> fields;
+	/** The fields compiled when the sweep is read; not part of the JSON */
+	private transient ScraperConfig config;
 	
 	public Sweep(String name, String args, List<ConfigField> fields) {
 		this.name = name;
@@ -24,4 +27,10 @@ public class Sweep {
 	public List<ConfigField> getFields() {
 		return this.fields;
 	}
+	public ScraperConfig getConfig() {
+		return this.config;
+	}
+	public void setConfig(ScraperConfig config) {
+		this.config = config;
+	}
 }
@@ -223,6 +223,27 @@ public class ArgumentParser {
 		return this.getInteger(flag, 0);
 	}
 
+	/**
+	 * Returns the value the specified flag is mapped as a double value, or the
+	 * backup value if unable to retrieve this mapping (including being unable to
+	 * convert the value to a double or if no value exists).
+	 *
+	 * @param flag the flag whose associated value will be returned
+	 * @param backup the backup value to return if there is no valid mapping
+	 * @return the value the specified flag is mapped as a double, or the backup
+	 *   value if there is no valid mapping
+	 *
+	 * @see Double#parseDouble(String)
+	 */
+	public double getDouble(String flag, double backup) {
+		String flagVal = this.map.get(flag);
+		try {
+			return Double.parseDouble(flagVal);
+		} catch (Exception e) {
+			return backup;
+		}
+	}
+
 	@Override
 	public String toString() {
 		return this.map.toString();
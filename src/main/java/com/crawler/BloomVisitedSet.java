@@ -0,0 +1,332 @@
+package com.crawler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * An approximate {@link VisitedSet} that keeps a fixed amount of memory no
+ * matter how many urls are added. Urls matching the route pattern are kept
+ * exactly, so a result is never skipped by mistake; every other url only sets
+ * bits in a scalable, partitioned Bloom filter held off-heap in a direct
+ * {@link ByteBuffer}.
+ *
+ * <p>
+ * A false positive makes the crawl skip a url it has not seen, so the
+ * configured false-positive rate bounds the share of non-result pages that are
+ * wrongly skipped. When a filter reaches its capacity a new filter twice as
+ * large with a tighter rate is added, which keeps the overall rate close to the
+ * configured one. Two threads adding the same new url at the same moment may
+ * both be told it is new.
+ */
+public class BloomVisitedSet implements VisitedSet {
+	/** Constant for default false-positive rate */
+	public static final double FPP_DEFAULT = 0.001;
+
+	/** Capacity of every new filter relative to the previous one */
+	private static final int GROWTH = 2;
+	/** False-positive rate of every new filter relative to the previous one */
+	private static final double TIGHTENING = 0.5;
+	/** Largest filter that fits in a single buffer, in bits */
+	private static final long MAX_BITS = (Integer.MAX_VALUE - 64L) * 8;
+	/** Gives atomic access to the filter bits as longs */
+	private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	/** Urls matching this pattern are kept exactly */
+	private final Pattern exactPattern;
+	/** Urls matching the pattern */
+	private final Set<String> exact;
+	/** The configured false-positive rate */
+	private final double fpp;
+	/** The filters, oldest first; only the last one is added to */
+	private final List<Filter> filters;
+	/** Urls added to the filters */
+	private final LongAdder approximate;
+	/** Urls the filters reported as already seen */
+	private final LongAdder rejected;
+
+	/**
+	 * A partitioned Bloom filter: each of the hash functions sets one bit in its
+	 * own slice of the buffer.
+	 */
+	private static class Filter {
+		/** The filter bits */
+		private final ByteBuffer bits;
+		/** Number of partitions, one per hash function */
+		private final int partitions;
+		/** Number of bits in each partition, a multiple of 64 */
+		private final long partitionBits;
+		/** Number of urls this filter is sized for */
+		private final long capacity;
+		/** The false-positive rate this filter is sized for */
+		private final double fpp;
+		/** Number of urls added */
+		private final AtomicLong count;
+
+		private Filter(long capacity, double fpp) {
+			this.capacity = Math.max(1, capacity);
+			this.fpp = fpp;
+			this.partitions = Math.max(1, (int) Math.ceil(-Math.log(fpp) / Math.log(2)));
+			long totalBits = (long) Math.ceil(-this.capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+			totalBits = Math.min(Math.max(totalBits, 64L * this.partitions), MAX_BITS);
+			this.partitionBits = Math.max(64, totalBits / this.partitions / 64 * 64);
+			int bytes = (int) (this.partitionBits * this.partitions / 8);
+			this.bits = ByteBuffer.allocateDirect(bytes + 8).alignedSlice(8).order(ByteOrder.nativeOrder());
+			this.count = new AtomicLong();
+		}
+
+		/**
+		 * Returns the bit index of a hash function.
+		 * @param partition the hash function
+		 * @param h1 the first hash
+		 * @param h2 the second hash
+		 * @return the bit index
+		 */
+		private long bit(int partition, long h1, long h2) {
+			long hash = (h1 + partition * h2) & Long.MAX_VALUE;
+			return partition * this.partitionBits + hash % this.partitionBits;
+		}
+
+		private boolean contains(long h1, long h2) {
+			for (int i = 0; i < this.partitions; i++) {
+				long bit = this.bit(i, h1, h2);
+				long word = (long) WORDS.getOpaque(this.bits, (int) ((bit >>> 6) << 3));
+				if ((word & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Sets the bits of the hashes.
+		 * @param h1 the first hash
+		 * @param h2 the second hash
+		 * @return {@code true} if any bit was not already set
+		 */
+		private boolean put(long h1, long h2) {
+			boolean changed = false;
+			for (int i = 0; i < this.partitions; i++) {
+				long bit = this.bit(i, h1, h2);
+				long mask = 1L << bit;
+				long previous = (long) WORDS.getAndBitwiseOr(this.bits, (int) ((bit >>> 6) << 3), mask);
+				changed |= (previous & mask) == 0;
+			}
+			return changed;
+		}
+
+		/**
+		 * Estimates the current false-positive rate from how full each partition
+		 * is.
+		 * @return the estimated false-positive rate
+		 */
+		private double estimatedFpp() {
+			double rate = 1;
+			for (int i = 0; i < this.partitions; i++) {
+				long set = 0;
+				long first = i * this.partitionBits / 64;
+				for (long w = first; w < first + this.partitionBits / 64; w++) {
+					set += Long.bitCount((long) WORDS.getOpaque(this.bits, (int) (w << 3)));
+				}
+				rate *= (double) set / this.partitionBits;
+			}
+			return rate;
+		}
+	}
+
+	/**
+	 * Initializes a set sized for the expected number of urls.
+	 *
+	 * @param expected number of urls expected to be added
+	 * @param fpp the false-positive rate; should be between 0 and 1
+	 * @param exactPattern urls matching this pattern are kept exactly
+	 */
+	public BloomVisitedSet(long expected, double fpp, Pattern exactPattern) {
+		this.fpp = fpp > 0 && fpp < 1 ? fpp : FPP_DEFAULT;
+		this.exactPattern = exactPattern;
+		this.exact = ConcurrentHashMap.newKeySet();
+		this.filters = new CopyOnWriteArrayList<>();
+		this.filters.add(new Filter(expected, this.fpp * (1 - TIGHTENING)));
+		this.approximate = new LongAdder();
+		this.rejected = new LongAdder();
+	}
+
+	@Override
+	public boolean add(String url) {
+		if (this.exactPattern.matcher(url).find()) {
+			return this.exact.add(url);
+		}
+
+		long h1 = hash(url);
+		long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+		int last = this.filters.size() - 1;
+		for (int i = 0; i < last; i++) {
+			if (this.filters.get(i).contains(h1, h2)) {
+				this.rejected.increment();
+				return false;
+			}
+		}
+
+		Filter current = this.filters.get(last);
+		if (!current.put(h1, h2)) {
+			this.rejected.increment();
+			return false;
+		}
+		if (current.count.incrementAndGet() == current.capacity) {
+			this.grow(current);
+		}
+		this.approximate.increment();
+		return true;
+	}
+
+	/**
+	 * Adds a larger, tighter filter once the current one is full.
+	 *
+	 * @param full the filter that is full
+	 */
+	private synchronized void grow(Filter full) {
+		if (this.filters.get(this.filters.size() - 1) == full) {
+			this.filters.add(new Filter(full.capacity * GROWTH, full.fpp * TIGHTENING));
+		}
+	}
+
+	/**
+	 * Estimates the chance that a new url is wrongly reported as seen, given
+	 * how full the filters are now.
+	 *
+	 * @return the estimated false-positive rate
+	 */
+	public double getEstimatedFpp() {
+		double miss = 1;
+		for (Filter filter : this.filters) {
+			miss *= 1 - filter.estimatedFpp();
+		}
+		return 1 - miss;
+	}
+
+	@Override
+	public List<String> getStats() {
+		long bytes = 0;
+		for (Filter filter : this.filters) {
+			bytes += filter.bits.capacity();
+		}
+		List<String> stats = new ArrayList<>();
+		stats.add("visitedExactUrls=" + this.exact.size());
+		stats.add("visitedApproximateUrls=" + this.approximate.sum());
+		stats.add("visitedRejectedUrls=" + this.rejected.sum());
+		stats.add("bloomFilters=" + this.filters.size());
+		stats.add("bloomBytes=" + bytes);
+		stats.add("bloomConfiguredFpp=" + this.fpp);
+		stats.add(String.format("bloomEstimatedFpp=%.6f", this.getEstimatedFpp()));
+		return stats;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * The exact urls, the counters, and the bits of every filter are written in
+	 * order. Adds running at the same time may or may not be included.
+	 */
+	@Override
+	public void save(Path file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(this.exact.size());
+			for (String url : this.exact) {
+				out.writeUTF(url);
+			}
+			out.writeLong(this.approximate.sum());
+			out.writeLong(this.rejected.sum());
+			out.writeInt(this.filters.size());
+			for (Filter filter : this.filters) {
+				out.writeLong(filter.capacity);
+				out.writeDouble(filter.fpp);
+				out.writeLong(filter.count.get());
+				out.flush();
+				Channels.newChannel(out).write(filter.bits.duplicate().clear());
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * The filters read from the file replace the current ones, so this should
+	 * only be called on a new set.
+	 */
+	@Override
+	public void load(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			int exactUrls = in.readInt();
+			for (int i = 0; i < exactUrls; i++) {
+				this.exact.add(in.readUTF());
+			}
+			this.approximate.add(in.readLong());
+			this.rejected.add(in.readLong());
+			int filters = in.readInt();
+			List<Filter> loaded = new ArrayList<>();
+			byte[] chunk = new byte[64 * 1024];
+			for (int i = 0; i < filters; i++) {
+				Filter filter = new Filter(in.readLong(), in.readDouble());
+				filter.count.set(in.readLong());
+				ByteBuffer bits = filter.bits.duplicate().clear();
+				while (bits.hasRemaining()) {
+					int length = Math.min(chunk.length, bits.remaining());
+					in.readFully(chunk, 0, length);
+					bits.put(chunk, 0, length);
+				}
+				loaded.add(filter);
+			}
+			this.filters.clear();
+			this.filters.addAll(loaded);
+		}
+	}
+
+	/**
+	 * Returns a 64-bit FNV-1a hash of the text, mixed for better bit spread.
+	 *
+	 * @param text the text to hash
+	 * @return the hash
+	 */
+	private static long hash(String text) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * The MurmurHash3 64-bit finalizer.
+	 *
+	 * @param hash the hash to mix
+	 * @return the mixed hash
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,176 @@
+package com.crawler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.crawler.CrawlFrontier.SegmentState;
+import com.crawler.WebCrawler.CrawlResult;
+import com.google.gson.Gson;
+
+/**
+ * The directory a crawl periodically saves its progress to, so that a crawl
+ * that stopped part way can be resumed instead of started again from the seed.
+ * It holds the segment files of the crawl's {@link CrawlFrontier}, the saved
+ * {@link VisitedSet}, and a small JSON file with everything else. The JSON file
+ * is replaced last and atomically, so a crash while saving leaves the previous
+ * checkpoint intact.
+ */
+public class CrawlCheckpoint {
+	/** Constant for default time between checkpoints */
+	public static final Duration INTERVAL_DEFAULT = Duration.ofSeconds(60);
+
+	/** Name of the JSON file with the crawl state */
+	private static final String STATE_FILE = "checkpoint.json";
+	/** Name of the directory with the frontier segments */
+	private static final String FRONTIER_DIR = "frontier";
+
+	/** The checkpoint directory */
+	private final Path dir;
+	/** Min time between checkpoints, in nanoseconds */
+	private final long interval;
+	/** When the last checkpoint was started, guarded by this */
+	private long lastSaved;
+	/** Number of checkpoints saved, used to name the visited files */
+	private long generation;
+
+	/**
+	 * The crawl state saved in the JSON file.
+	 */
+	static class State {
+		/** Number of urls claimed */
+		int reserved;
+		/** Results recorded so far */
+		List<CrawlResult> results;
+		/** Claimed urls not yet finished that are not in a segment, per level, in order */
+		List<List<CrawlFrontier.Entry>> heads;
+		/** Positions of the frontier segments */
+		List<SegmentState> segments;
+		/** Name of the file the visited set was saved to */
+		String visitedFile;
+		/** Number of checkpoints saved */
+		long generation;
+	}
+
+	/**
+	 * Initializes a checkpoint directory. Nothing is written until the first
+	 * checkpoint is saved.
+	 *
+	 * @param dir the directory, usually one per sweep run
+	 * @param interval min time between checkpoints
+	 */
+	public CrawlCheckpoint(Path dir, Duration interval) {
+		this.dir = dir;
+		this.interval = interval.toNanos();
+		this.lastSaved = System.nanoTime();
+		this.generation = 0;
+	}
+
+	/**
+	 * Returns the directory for the frontier segment files.
+	 *
+	 * @return the frontier directory
+	 */
+	public Path getFrontierDir() {
+		return this.dir.resolve(FRONTIER_DIR);
+	}
+
+	/**
+	 * Returns {@code true} if a checkpoint was saved that can be resumed.
+	 *
+	 * @return {@code true} if a checkpoint exists
+	 */
+	public boolean exists() {
+		return Files.isRegularFile(this.dir.resolve(STATE_FILE));
+	}
+
+	/**
+	 * Returns {@code true}, at most once per interval, if a checkpoint should be
+	 * saved now.
+	 *
+	 * @return {@code true} if the caller should save a checkpoint
+	 */
+	synchronized boolean isDue() {
+		long now = System.nanoTime();
+		if (now - this.lastSaved < this.interval) {
+			return false;
+		}
+		this.lastSaved = now;
+		return true;
+	}
+
+	/**
+	 * Saves the visited set and then the crawl state. The caller must make sure
+	 * neither changes while they are saved.
+	 *
+	 * @param state the crawl state
+	 * @param visited the visited set
+	 * @throws IOException if unable to write the files
+	 */
+	void save(State state, VisitedSet visited) throws IOException {
+		Files.createDirectories(this.dir);
+		String previous = this.generation > 0 ? visitedFile(this.generation) : null;
+		state.generation = ++this.generation;
+		state.visitedFile = visitedFile(state.generation);
+		visited.save(this.dir.resolve(state.visitedFile));
+
+		Path temp = this.dir.resolve(STATE_FILE + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp)) {
+			new Gson().toJson(state, writer);
+		}
+		Files.move(temp, this.dir.resolve(STATE_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (previous != null) {
+			Files.deleteIfExists(this.dir.resolve(previous));
+		}
+	}
+
+	/**
+	 * Loads the last checkpoint, restoring the visited set from it.
+	 *
+	 * @param visited an empty visited set to restore
+	 * @return the crawl state
+	 * @throws IOException if unable to read the files
+	 */
+	State load(VisitedSet visited) throws IOException {
+		State state;
+		try (Reader reader = Files.newBufferedReader(this.dir.resolve(STATE_FILE))) {
+			state = new Gson().fromJson(reader, State.class);
+		}
+		visited.load(this.dir.resolve(state.visitedFile));
+		this.generation = state.generation;
+		return state;
+	}
+
+	/**
+	 * Deletes the checkpoint directory, once the crawl it belongs to is done.
+	 *
+	 * @throws IOException if unable to delete a file
+	 */
+	public void delete() throws IOException {
+		if (!Files.exists(this.dir)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(this.dir)) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+
+	/**
+	 * Returns the name of the visited file of a checkpoint.
+	 *
+	 * @param generation the number of the checkpoint
+	 * @return the file name
+	 */
+	private static String visitedFile(long generation) {
+		return "visited-" + generation + ".dat";
+	}
+}
@@ -0,0 +1,563 @@
+package com.crawler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The urls a crawl has claimed but not yet started. Urls are added at a
+ * priority level and always taken from the best non-empty level, in first-in
+ * first-out order within a level. A frontier with a single level is plain
+ * first-in first-out.
+ *
+ * <p>
+ * Each level keeps a small head in memory; once it is full, further urls are
+ * appended to segment files on disk, so the frontier can grow far beyond the
+ * heap. Without a directory the whole frontier is kept in memory.
+ *
+ * <p>
+ * Segments are append-only and a consumed segment is only deleted by
+ * {@link #deleteConsumed()}, once a newer checkpoint has been saved, so the
+ * positions of the last saved checkpoint stay valid until a newer one replaces
+ * it. Its file is closed as soon as it is consumed, so nothing holds it open
+ * by then. Not thread safe; the crawl guards it.
+ */
+public class CrawlFrontier {
+	/** Constant for default number of urls kept in memory per level */
+	public static final int HEAD_DEFAULT = 1024;
+	/** Constant for the size of a segment file in bytes */
+	public static final int SEGMENT_BYTES = 8 * 1024 * 1024;
+	/** Size of the buffers a segment is written and read through */
+	private static final int BUFFER_BYTES = 64 * 1024;
+
+	/** The levels, best first */
+	private final Level[] levels;
+	/** Max number of urls kept in memory per level while urls are spilled */
+	private final int headCapacity;
+	/** Directory for segment files, or {@code null} to keep every url in memory */
+	private final Path dir;
+	/** Segments read to the end, deleted once the next checkpoint is saved */
+	private final List<Segment> consumed;
+	/** Number of the next segment file */
+	private int nextSegment;
+	/** Number of urls in the frontier */
+	private long size;
+
+	/**
+	 * A url in the frontier and its depth from the seed. The url is the
+	 * canonical form the crawl claimed; the location is the url as it was found,
+	 * which is the one fetched.
+	 */
+	public static class Entry {
+		/** The canonical url, already claimed */
+		private final String url;
+		/** The url as found, or {@code null} if the same as the canonical url */
+		private final String location;
+		/** Number of links followed from the seed to reach the url */
+		private final int depth;
+
+		/**
+		 * Initializes an entry for a url found in its canonical form.
+		 *
+		 * @param url the url
+		 * @param depth the depth from the seed
+		 */
+		public Entry(String url, int depth) {
+			this(url, url, depth);
+		}
+
+		/**
+		 * Initializes an entry.
+		 *
+		 * @param url the canonical url
+		 * @param location the url as found
+		 * @param depth the depth from the seed
+		 */
+		public Entry(String url, String location, int depth) {
+			this.url = url;
+			this.location = url.equals(location) ? null : location;
+			this.depth = depth;
+		}
+
+		/**
+		 * Returns the canonical url.
+		 *
+		 * @return the url
+		 */
+		public String getUrl() {
+			return this.url;
+		}
+
+		/**
+		 * Returns the url as found, which is the one to fetch.
+		 *
+		 * @return the location
+		 */
+		public String getLocation() {
+			return this.location != null ? this.location : this.url;
+		}
+
+		/**
+		 * Returns the depth from the seed.
+		 *
+		 * @return the depth
+		 */
+		public int getDepth() {
+			return this.depth;
+		}
+	}
+
+	/**
+	 * Position of a segment file, saved in a checkpoint.
+	 */
+	public static class SegmentState {
+		/** Level the segment belongs to */
+		private final int level;
+		/** Name of the segment file */
+		private final String file;
+		/** Offset of the next url to read */
+		private final int readPos;
+		/** Offset after the last url written */
+		private final int writePos;
+		/** Number of urls left to read */
+		private final long urls;
+
+		/**
+		 * Initializes the saved position of a segment.
+		 *
+		 * @param level level the segment belongs to
+		 * @param file name of the segment file
+		 * @param readPos offset of the next url to read
+		 * @param writePos offset after the last url written
+		 * @param urls number of urls left to read
+		 */
+		private SegmentState(int level, String file, int readPos, int writePos, long urls) {
+			this.level = level;
+			this.file = file;
+			this.readPos = readPos;
+			this.writePos = writePos;
+			this.urls = urls;
+		}
+	}
+
+	/**
+	 * The urls at one priority level.
+	 */
+	private static class Level {
+		/** The urls at the front of the level */
+		private final ArrayDeque<Entry> head;
+		/** Segments with urls left to read, oldest first; new urls go to the last */
+		private final ArrayDeque<Segment> segments;
+
+		/**
+		 * Initializes an empty level.
+		 */
+		private Level() {
+			this.head = new ArrayDeque<>();
+			this.segments = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * A segment file of entries, each the depth followed by the length-prefixed
+	 * UTF-8 canonical url and location. The length of the location is -1 if it
+	 * is the same as the canonical url. Entries are written and read through
+	 * small buffers rather than a mapping of the whole file, so the file can be
+	 * deleted as soon as its channel is closed.
+	 */
+	private static class Segment {
+		/** The segment file */
+		private final Path file;
+		/** The open segment file, closed once the segment is consumed */
+		private final FileChannel channel;
+		/** Entries written but not yet flushed, which belong at the end of the file */
+		private final ByteBuffer tail;
+		/** Bytes read ahead from the file, starting at aheadPos */
+		private final ByteBuffer ahead;
+		/** Offset in the file of the first byte of ahead */
+		private int aheadPos;
+		/** Offset of the next url to read */
+		private int readPos;
+		/** Offset after the last url written */
+		private int writePos;
+		/** Number of urls left to read */
+		private long urls;
+
+		/**
+		 * Opens a segment file.
+		 *
+		 * @param file the segment file
+		 * @param readPos offset of the next url to read
+		 * @param writePos offset after the last url written
+		 * @param urls number of urls left to read
+		 * @param restored whether the file is restored from a checkpoint rather
+		 *   than new
+		 * @throws IOException if unable to open the file, or a restored file is
+		 *   missing or truncated
+		 */
+		private Segment(Path file, int readPos, int writePos, long urls, boolean restored) throws IOException {
+			this.file = file;
+			// a restored segment must still hold its urls, so it is never created
+			this.channel = restored
+					? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+					: FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (this.channel.size() < writePos) {
+				this.channel.close();
+				throw new IOException("Frontier segment is truncated: " + file);
+			}
+			this.tail = ByteBuffer.allocate(BUFFER_BYTES);
+			this.ahead = ByteBuffer.allocate(BUFFER_BYTES).limit(0);
+			this.aheadPos = 0;
+			this.readPos = readPos;
+			this.writePos = writePos;
+			this.urls = urls;
+		}
+
+		/**
+		 * Appends an entry, unless the segment is full.
+		 *
+		 * @param depth the depth from the seed
+		 * @param url the canonical url
+		 * @param location the url as found, or {@code null} if the same
+		 * @return {@code false} if the entry does not fit in the segment
+		 * @throws IOException if unable to write the file
+		 */
+		private boolean write(int depth, byte[] url, byte[] location) throws IOException {
+			int locationLength = location != null ? location.length : 0;
+			int length = 3 * Integer.BYTES + url.length + locationLength;
+			if (this.writePos + length > SEGMENT_BYTES) {
+				return false;
+			}
+			if (length > this.tail.remaining()) {
+				this.flush();
+			}
+			ByteBuffer buffer = length > this.tail.capacity() ? ByteBuffer.allocate(length) : this.tail;
+			buffer.putInt(depth).putInt(url.length).put(url);
+			buffer.putInt(location != null ? location.length : -1);
+			if (location != null) {
+				buffer.put(location);
+			}
+			this.writePos += length;
+			if (buffer != this.tail) {
+				buffer.flip();
+				this.writeFully(buffer, this.writePos - length);
+			}
+			this.urls++;
+			return true;
+		}
+
+		/**
+		 * Reads the next entry. There must be one left.
+		 *
+		 * @return the entry
+		 * @throws IOException if unable to read the file
+		 */
+		private Entry read() throws IOException {
+			ByteBuffer buffer = this.bytes(this.readPos, 2 * Integer.BYTES);
+			int depth = buffer.getInt();
+			int urlLength = buffer.getInt();
+			String url = this.readString(this.readPos + 2 * Integer.BYTES, urlLength);
+			int pos = this.readPos + 2 * Integer.BYTES + urlLength;
+			int locationLength = this.bytes(pos, Integer.BYTES).getInt();
+			String location = locationLength < 0 ? url : this.readString(pos + Integer.BYTES, locationLength);
+			this.readPos = pos + Integer.BYTES + Math.max(0, locationLength);
+			this.urls--;
+			return new Entry(url, location, depth);
+		}
+
+		/**
+		 * Reads a UTF-8 string.
+		 *
+		 * @param pos the offset of the string
+		 * @param length the length of the string in bytes
+		 * @return the string
+		 * @throws IOException if unable to read the file
+		 */
+		private String readString(int pos, int length) throws IOException {
+			byte[] bytes = new byte[length];
+			this.bytes(pos, length).get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Returns a buffer positioned at the offset with at least the given
+		 * number of bytes remaining, reading ahead from the file if they are not
+		 * already buffered. Written entries are never changed, so bytes read
+		 * ahead stay valid.
+		 *
+		 * @param pos the offset
+		 * @param length the number of bytes needed
+		 * @return the buffer
+		 * @throws IOException if unable to read the file
+		 */
+		private ByteBuffer bytes(int pos, int length) throws IOException {
+			if (pos + length > this.writePos - this.tail.position()) {
+				this.flush();
+			}
+			// only what has been flushed is in the file
+			int flushed = this.writePos - this.tail.position();
+			if (pos >= this.aheadPos && pos + length <= this.aheadPos + this.ahead.limit()) {
+				return this.ahead.position(pos - this.aheadPos);
+			}
+			ByteBuffer buffer = length > this.ahead.capacity() ? ByteBuffer.allocate(length) : this.ahead.clear();
+			buffer.limit(Math.min(buffer.capacity(), flushed - pos));
+			while (buffer.hasRemaining()) {
+				if (this.channel.read(buffer, pos + buffer.position()) < 0) {
+					throw new IOException("Frontier segment is truncated: " + this.file);
+				}
+			}
+			buffer.flip();
+			if (buffer == this.ahead) {
+				this.aheadPos = pos;
+			}
+			return buffer;
+		}
+
+		/**
+		 * Writes the buffered entries to the file.
+		 *
+		 * @throws IOException if unable to write the file
+		 */
+		private void flush() throws IOException {
+			int pos = this.writePos - this.tail.position();
+			this.tail.flip();
+			this.writeFully(this.tail, pos);
+			this.tail.clear();
+		}
+
+		/**
+		 * Writes the whole buffer to the file.
+		 *
+		 * @param buffer the bytes to write
+		 * @param pos the offset to write them at
+		 * @throws IOException if unable to write the file
+		 */
+		private void writeFully(ByteBuffer buffer, int pos) throws IOException {
+			while (buffer.hasRemaining()) {
+				pos += this.channel.write(buffer, pos);
+			}
+		}
+	}
+
+	/**
+	 * Initializes a first-in first-out frontier kept entirely in memory.
+	 */
+	public CrawlFrontier() {
+		this(null, HEAD_DEFAULT, 1);
+	}
+
+	/**
+	 * Initializes an empty frontier that spills to segment files in the
+	 * directory.
+	 *
+	 * @param dir directory for segment files, or {@code null} to keep every url
+	 *   in memory
+	 * @param headCapacity max number of urls kept in memory per level while
+	 *   urls are spilled
+	 * @param levels number of priority levels; 1 for first-in first-out
+	 */
+	public CrawlFrontier(Path dir, int headCapacity, int levels) {
+		this.levels = new Level[Math.max(1, levels)];
+		for (int i = 0; i < this.levels.length; i++) {
+			this.levels[i] = new Level();
+		}
+		this.headCapacity = headCapacity < 1 ? HEAD_DEFAULT : headCapacity;
+		this.dir = dir;
+		this.consumed = new ArrayList<>();
+		this.nextSegment = 0;
+		this.size = 0;
+	}
+
+	/**
+	 * Returns the number of priority levels.
+	 *
+	 * @return the number of levels
+	 */
+	public int getLevels() {
+		return this.levels.length;
+	}
+
+	/**
+	 * Adds the url to the back of its level.
+	 *
+	 * @param entry the url to add
+	 * @param level the priority level, 0 being the best; clamped to the levels
+	 *   of the frontier
+	 * @throws IOException if unable to write a segment file
+	 */
+	public void add(Entry entry, int level) throws IOException {
+		level = Math.max(0, Math.min(level, this.levels.length - 1));
+		Level lane = this.levels[level];
+		if (this.dir == null || (lane.segments.isEmpty() && lane.head.size() < this.headCapacity)) {
+			lane.head.addLast(entry);
+		} else {
+			byte[] bytes = entry.url.getBytes(StandardCharsets.UTF_8);
+			byte[] location = entry.location != null ? entry.location.getBytes(StandardCharsets.UTF_8) : null;
+			Segment last = lane.segments.peekLast();
+			if (last == null || !last.write(entry.depth, bytes, location)) {
+				Files.createDirectories(this.dir);
+				last = new Segment(this.dir.resolve("segment-" + level + "-" + this.nextSegment++ + ".dat"), 0, 0, 0, false);
+				lane.segments.addLast(last);
+				if (!last.write(entry.depth, bytes, location)) {
+					return;
+				}
+			}
+		}
+		this.size++;
+	}
+
+	/**
+	 * Adds the url to the front of the best level, so it is the next one polled.
+	 * It is kept in memory even if the head is full.
+	 *
+	 * @param entry the url to add
+	 */
+	public void addFirst(Entry entry) {
+		this.levels[0].head.addFirst(entry);
+		this.size++;
+	}
+
+	/**
+	 * Removes the url at the front of the best non-empty level, refilling its
+	 * head from the oldest segment when it runs out.
+	 *
+	 * @return the url, or {@code null} if the frontier is empty
+	 * @throws IOException if unable to read a segment file
+	 */
+	public Entry poll() throws IOException {
+		for (Level lane : this.levels) {
+			if (lane.head.isEmpty()) {
+				while (!lane.segments.isEmpty() && lane.head.size() < this.headCapacity) {
+					Segment first = lane.segments.peekFirst();
+					if (first.urls == 0) {
+						first.channel.close();
+						this.consumed.add(lane.segments.removeFirst());
+					} else {
+						lane.head.addLast(first.read());
+					}
+				}
+			}
+			Entry entry = lane.head.pollFirst();
+			if (entry != null) {
+				this.size--;
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns {@code true} if the frontier is empty.
+	 *
+	 * @return {@code true} if the frontier is empty
+	 */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Returns the number of urls in the frontier.
+	 *
+	 * @return the number of urls
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the urls in memory at each level, in order.
+	 *
+	 * @return a copy of the urls in memory, one list per level
+	 */
+	public List<List<Entry>> getHeads() {
+		List<List<Entry>> heads = new ArrayList<>();
+		for (Level lane : this.levels) {
+			heads.add(new ArrayList<>(lane.head));
+		}
+		return heads;
+	}
+
+	/**
+	 * Flushes the segment files to disk and returns the positions needed to
+	 * restore the spilled urls. Segments consumed since the last checkpoint are
+	 * kept until {@link #deleteConsumed()} is called.
+	 *
+	 * @return the positions of the segments, oldest first within a level
+	 * @throws IOException if unable to write a segment file
+	 */
+	public List<SegmentState> checkpoint() throws IOException {
+		List<SegmentState> states = new ArrayList<>();
+		for (int level = 0; level < this.levels.length; level++) {
+			for (Segment segment : this.levels[level].segments) {
+				segment.flush();
+				segment.channel.force(false);
+				states.add(new SegmentState(level, segment.file.getFileName().toString(), segment.readPos, segment.writePos, segment.urls));
+			}
+		}
+		return states;
+	}
+
+	/**
+	 * Deletes the segments consumed before the last {@link #checkpoint()}. Call
+	 * only once the state it returned has been saved, since the checkpoint
+	 * before it may still refer to them.
+	 *
+	 * @throws IOException if unable to delete a consumed segment
+	 */
+	public void deleteConsumed() throws IOException {
+		// a segment is forgotten only once deleted, so a failed one is retried
+		for (Iterator<Segment> segments = this.consumed.iterator(); segments.hasNext();) {
+			Segment segment = segments.next();
+			segment.channel.close();
+			Files.deleteIfExists(segment.file);
+			segments.remove();
+		}
+	}
+
+	/**
+	 * Restores an empty frontier to the state of a checkpoint. Levels that do
+	 * not exist in this frontier are merged into the last one.
+	 *
+	 * @param heads the urls in memory at each level at the time of the
+	 *   checkpoint, in order
+	 * @param states the positions returned by {@link #checkpoint()}
+	 * @throws IOException if a segment file is missing or truncated, or unable
+	 *   to open it
+	 */
+	public void restore(List<List<Entry>> heads, List<SegmentState> states) throws IOException {
+		for (int level = 0; level < heads.size(); level++) {
+			this.levels[Math.min(level, this.levels.length - 1)].head.addAll(heads.get(level));
+			this.size += heads.get(level).size();
+		}
+		for (SegmentState state : states) {
+			Segment segment = new Segment(this.dir.resolve(state.file), state.readPos, state.writePos, state.urls, true);
+			this.levels[Math.min(state.level, this.levels.length - 1)].segments.addLast(segment);
+			this.size += segment.urls;
+			String number = state.file.substring(state.file.lastIndexOf('-') + 1, state.file.lastIndexOf('.'));
+			this.nextSegment = Math.max(this.nextSegment, Integer.parseInt(number) + 1);
+		}
+	}
+
+	/**
+	 * Drops every url and deletes the segment files.
+	 *
+	 * @throws IOException if unable to delete a segment file
+	 */
+	public void close() throws IOException {
+		for (Level lane : this.levels) {
+			this.consumed.addAll(lane.segments);
+			lane.segments.clear();
+			lane.head.clear();
+		}
+		this.size = 0;
+		this.deleteConsumed();
+	}
+}
@@ -0,0 +1,45 @@
+package com.crawler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link VisitedSet} that keeps every url, backed by a
+ * {@link ConcurrentHashMap} so that adds from many threads do not contend on a
+ * single lock.
+ */
+public class ExactVisitedSet implements VisitedSet {
+	/** The urls added so far */
+	private final Set<String> urls;
+
+	/**
+	 * Initializes an empty set.
+	 */
+	public ExactVisitedSet() {
+		this.urls = ConcurrentHashMap.newKeySet();
+	}
+
+	@Override
+	public boolean add(String url) {
+		return this.urls.add(url);
+	}
+
+	@Override
+	public List<String> getStats() {
+		return List.of("visitedUrls=" + this.urls.size());
+	}
+
+	@Override
+	public void save(Path file) throws IOException {
+		Files.write(file, this.urls);
+	}
+
+	@Override
+	public void load(Path file) throws IOException {
+		this.urls.addAll(Files.readAllLines(file));
+	}
+}
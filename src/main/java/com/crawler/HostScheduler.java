@@ -0,0 +1,463 @@
+package com.crawler;
+
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.threading.TaskQueue;
+
+/**
+ * Releases crawl tasks to an {@link Executor} no faster than each host allows.
+ * Every host has a token bucket refilled at the configured rate; a task for a
+ * host with a token is released right away, otherwise it is parked and a timer
+ * releases it once the host has budget again. No thread ever sleeps while
+ * waiting for a host.
+ *
+ * <p>
+ * The first task for a host is held until the host's robots.txt has been
+ * fetched. A "Crawl-delay" found there lowers the host's rate. A 429 or 503
+ * response reported through {@link #backoff(URL, String)} pauses the host for
+ * the "Retry-After" time and halves its rate, which then recovers slowly as
+ * tasks are released.
+ *
+ * <p>
+ * Tasks that were parked are handed to the {@link Executor} from a separate
+ * release thread, so neither the timer nor the HTTP client's threads ever wait
+ * on a full queue.
+ */
+public class HostScheduler {
+	/** Constant for default number of requests per second per host */
+	public static final double RATE_DEFAULT = 2;
+	/** Constant for default number of requests a host may burst */
+	public static final int BURST_DEFAULT = 1;
+	/** Constant for the pause when a throttled response has no Retry-After */
+	public static final Duration BACKOFF_DEFAULT = Duration.ofSeconds(10);
+	/** Constant for the retry-after header */
+	public static final String RETRY_AFTER = "Retry-After";
+
+	/** Lowest rate a host is slowed down to, in requests per second */
+	private static final double MIN_RATE = 0.05;
+
+	/** Where released tasks run */
+	private final Executor target;
+	/** Configured requests per second per host */
+	private final double rate;
+	/** Configured number of requests a host may burst */
+	private final int burst;
+	/** The state of each host seen so far */
+	private final Map<String, Host> hosts;
+	/** Runs the timed releases */
+	private final ScheduledExecutorService timer;
+	/** Hands parked tasks to the target once they are released */
+	private final ExecutorService releaser;
+
+	/** Number of parked tasks plus hosts waiting on robots.txt, guarded by this */
+	private int waiting;
+	/** Number of tasks released after being parked, guarded by this */
+	private long released;
+
+	/**
+	 * Token bucket and parked tasks of a single host. All fields are guarded by
+	 * the host itself.
+	 */
+	private static class Host {
+		/** Requests per second currently allowed */
+		private double rate;
+		/** Requests per second the host recovers to */
+		private double maxRate;
+		/** Max number of tokens */
+		private double burst;
+		/** Tokens currently available */
+		private double tokens;
+		/** When the tokens were last refilled, in nanoseconds */
+		private long refilled;
+		/** No task is released before this time, in nanoseconds */
+		private long pausedUntil;
+		/** Whether robots.txt has been fetched */
+		private boolean ready;
+		/** Whether a timed release is scheduled */
+		private boolean scheduled;
+		/** Tasks waiting for a token */
+		private final ArrayDeque<Runnable> parked = new ArrayDeque<>();
+
+		private Host(double rate, int burst) {
+			this.rate = rate;
+			this.maxRate = rate;
+			this.burst = burst;
+			this.tokens = burst;
+			this.refilled = System.nanoTime();
+		}
+
+		/**
+		 * Adds the tokens earned since the last refill.
+		 * @param now the current time in nanoseconds
+		 */
+		private void refill(long now) {
+			this.tokens = Math.min(this.burst, this.tokens + (now - this.refilled) / 1e9 * this.rate);
+			this.refilled = now;
+		}
+
+		/**
+		 * Returns how long until a token is available.
+		 * @param now the current time in nanoseconds
+		 * @return the delay in nanoseconds
+		 */
+		private long delay(long now) {
+			long untilToken = (long) Math.ceil((1 - this.tokens) / this.rate * 1e9);
+			return Math.max(Math.max(untilToken, this.pausedUntil - now), 0);
+		}
+	}
+
+	/**
+	 * Initializes a scheduler with the default rate and burst.
+	 *
+	 * @param target where released tasks run
+	 *
+	 * @see #HostScheduler(Executor, double, int)
+	 */
+	public HostScheduler(Executor target) {
+		this(target, RATE_DEFAULT, BURST_DEFAULT);
+	}
+
+	/**
+	 * Initializes a scheduler.
+	 *
+	 * @param target where released tasks run
+	 * @param rate requests per second per host; should be greater than 0
+	 * @param burst number of requests a host may burst; should be at least 1
+	 */
+	public HostScheduler(Executor target, double rate, int burst) {
+		this.target = target;
+		this.rate = rate > 0 ? rate : RATE_DEFAULT;
+		this.burst = burst > 0 ? burst : BURST_DEFAULT;
+		this.hosts = new ConcurrentHashMap<>();
+		this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "HostScheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.releaser = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "HostScheduler-release");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.waiting = 0;
+		this.released = 0;
+	}
+
+	/**
+	 * Releases the task for the url's host once the host has budget.
+	 *
+	 * @param url the url the task will fetch
+	 * @param task the task
+	 */
+	public void submit(String url, Runnable task) {
+		String host;
+		try {
+			host = LinkExtractor.toUrl(url).getAuthority();
+		} catch (Exception e) {
+			this.target.execute(task);
+			return;
+		}
+
+		boolean created = false;
+		Host state = this.hosts.get(host);
+		if (state == null) {
+			Host fresh = new Host(this.rate, this.burst);
+			state = this.hosts.putIfAbsent(host, fresh);
+			if (state == null) {
+				state = fresh;
+				created = true;
+			}
+		}
+
+		boolean run = false;
+		synchronized (state) {
+			long now = System.nanoTime();
+			state.refill(now);
+			if (state.ready && state.parked.isEmpty() && now >= state.pausedUntil && state.tokens >= 1) {
+				state.tokens--;
+				run = true;
+			} else {
+				state.parked.addLast(task);
+				this.changeWaiting(1, 0);
+				if (state.ready) {
+					this.schedule(state, now);
+				}
+			}
+		}
+
+		if (created) {
+			this.changeWaiting(1, 0);
+			this.fetchRobots(url, state);
+		}
+		if (run) {
+			this.target.execute(task);
+		}
+	}
+
+	/**
+	 * Pauses the url's host after a 429 or 503 response and halves its rate.
+	 *
+	 * @param url the url that was throttled
+	 * @param retryAfter the value of the Retry-After header, or {@code null}
+	 */
+	public void backoff(URL url, String retryAfter) {
+		Host state = this.hosts.get(url.getAuthority());
+		if (state == null) {
+			return;
+		}
+		Duration pause = parseRetryAfter(retryAfter);
+		synchronized (state) {
+			long now = System.nanoTime();
+			state.pausedUntil = Math.max(state.pausedUntil, now + pause.toNanos());
+			state.rate = Math.max(MIN_RATE, state.rate / 2);
+			state.tokens = Math.min(state.tokens, 0);
+		}
+	}
+
+	/**
+	 * Waits until the queue has no pending work and no task is parked here, so
+	 * that every task of the crawl has run.
+	 *
+	 * @param queue the queue released tasks run on
+	 */
+	public void finish(TaskQueue queue) {
+		while (true) {
+			long before;
+			synchronized (this) {
+				while (this.waiting > 0) {
+					try {
+						this.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				before = this.released;
+			}
+			queue.finish();
+			synchronized (this) {
+				// done only if nothing was parked or released while the queue drained
+				if (this.waiting == 0 && this.released == before) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns {@code true} if no task is parked here.
+	 *
+	 * @return {@code true} if no task is parked
+	 */
+	public synchronized boolean isIdle() {
+		return this.waiting == 0;
+	}
+
+	/**
+	 * Releases every parked task at once, ignoring the hosts' budgets, so a
+	 * crawl that has stopped early winds down without waiting for them.
+	 */
+	public void releaseAll() {
+		for (Host state : this.hosts.values()) {
+			List<Runnable> tasks;
+			synchronized (state) {
+				tasks = new ArrayList<>(state.parked);
+				state.parked.clear();
+			}
+			this.hand(tasks);
+		}
+	}
+
+	/**
+	 * Stops the timer and the release thread. Parked tasks are never released.
+	 */
+	public void shutdown() {
+		this.timer.shutdownNow();
+		this.releaser.shutdownNow();
+	}
+
+	/**
+	 * Releases the parked tasks of a host that have budget and schedules the
+	 * next release if any remain.
+	 *
+	 * @param state the host
+	 */
+	private void release(Host state) {
+		List<Runnable> tasks = new ArrayList<>();
+		synchronized (state) {
+			state.scheduled = false;
+			long now = System.nanoTime();
+			state.refill(now);
+			while (state.ready && !state.parked.isEmpty() && now >= state.pausedUntil && state.tokens >= 1) {
+				state.tokens--;
+				state.rate = Math.min(state.maxRate, state.rate + state.maxRate / 100);
+				tasks.add(state.parked.removeFirst());
+			}
+			if (!state.parked.isEmpty()) {
+				this.schedule(state, now);
+			}
+		}
+		this.hand(tasks);
+	}
+
+	/**
+	 * Hands released tasks to the target on the release thread. They stop
+	 * counting as waiting only once the target has them, so
+	 * {@link #finish(TaskQueue)} never misses one.
+	 *
+	 * @param tasks the released tasks
+	 */
+	private void hand(List<Runnable> tasks) {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		this.releaser.execute(() -> {
+			for (Runnable task : tasks) {
+				this.target.execute(task);
+			}
+			this.changeWaiting(-tasks.size(), tasks.size());
+		});
+	}
+
+	/**
+	 * Schedules a release for when the host next has a token. Must be called
+	 * while holding the host.
+	 *
+	 * @param state the host
+	 * @param now the current time in nanoseconds
+	 */
+	private void schedule(Host state, long now) {
+		if (!state.scheduled) {
+			state.scheduled = true;
+			this.timer.schedule(() -> this.release(state), state.delay(now), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Updates the number of waiting and released tasks, waking up
+	 * {@link #finish(TaskQueue)} if nothing is waiting.
+	 *
+	 * @param delta change in the number of waiting tasks
+	 * @param released number of tasks released
+	 */
+	private synchronized void changeWaiting(int delta, int released) {
+		this.waiting += delta;
+		this.released += released;
+		if (this.waiting == 0) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Fetches robots.txt for the url's host without blocking, applies its
+	 * Crawl-delay, and then lets the host's tasks be released.
+	 *
+	 * @param url a url on the host
+	 * @param state the host
+	 */
+	private void fetchRobots(String url, Host state) {
+		try {
+			URL robots = URI.create(url).resolve("/robots.txt").toURL();
+			HttpsFetcher.fetchUrlAsync(robots)
+				.thenApply(response -> response.statusCode() == HtmlFetcher.OK ? parseCrawlDelay(response) : -1)
+				.exceptionally(e -> -1.0)
+				.thenAccept(delay -> this.ready(state, delay));
+		} catch (Exception e) {
+			this.ready(state, -1);
+		}
+	}
+
+	/**
+	 * Marks the host as ready once robots.txt has been handled.
+	 *
+	 * @param state the host
+	 * @param crawlDelay the crawl delay in seconds, or a negative number if none
+	 */
+	private void ready(Host state, double crawlDelay) {
+		synchronized (state) {
+			if (crawlDelay > 0) {
+				state.maxRate = Math.min(state.maxRate, 1 / crawlDelay);
+				state.rate = Math.min(state.rate, state.maxRate);
+				state.burst = 1;
+				state.tokens = Math.min(state.tokens, 1);
+			}
+			state.ready = true;
+		}
+		this.changeWaiting(-1, 0);
+		this.release(state);
+	}
+
+	/**
+	 * Returns the Crawl-delay that applies to every user agent ("*").
+	 *
+	 * @param response the robots.txt response
+	 * @return the crawl delay in seconds, or -1 if there is none
+	 */
+	private static double parseCrawlDelay(HttpResponse<String> response) {
+		boolean applies = false;
+		boolean inAgents = false;
+		for (String line : response.body().split("\\R")) {
+			int comment = line.indexOf('#');
+			line = (comment >= 0 ? line.substring(0, comment) : line).strip();
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String field = line.substring(0, colon).strip().toLowerCase();
+			String value = line.substring(colon + 1).strip();
+			if (field.equals("user-agent")) {
+				// consecutive user-agent lines share one group of rules
+				applies = (inAgents && applies) || value.equals("*");
+				inAgents = true;
+				continue;
+			}
+			inAgents = false;
+			if (applies && field.equals("crawl-delay")) {
+				try {
+					return Double.parseDouble(value);
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses a Retry-After header given either in seconds or as an HTTP date.
+	 *
+	 * @param retryAfter the header value, or {@code null}
+	 * @return how long to pause
+	 */
+	private static Duration parseRetryAfter(String retryAfter) {
+		if (retryAfter == null) {
+			return BACKOFF_DEFAULT;
+		}
+		try {
+			return Duration.ofSeconds(Math.max(0, Long.parseLong(retryAfter.strip())));
+		} catch (NumberFormatException e) {
+			try {
+				ZonedDateTime date = ZonedDateTime.parse(retryAfter.strip(), DateTimeFormatter.RFC_1123_DATE_TIME);
+				Duration pause = Duration.between(ZonedDateTime.now(), date);
+				return pause.isNegative() ? Duration.ZERO : pause;
+			} catch (Exception ex) {
+				return BACKOFF_DEFAULT;
+			}
+		}
+	}
+}
@@ -0,0 +1,449 @@
+package com.crawler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A {@link HttpResponse.BodyHandler} that decides from the status and headers
+ * alone whether a body is worth downloading. Redirects, error responses,
+ * non-HTML content, and bodies declared larger than the byte cap are never
+ * read; their body is {@code null}. HTML bodies without a declared length are
+ * cut off (and also become {@code null}) as soon as they pass the cap.
+ *
+ * <p>
+ * Bodies sent with a gzip or deflate "Content-Encoding" are decompressed
+ * chunk by chunk as they arrive; the cap applies to both the compressed and
+ * the decompressed size, and the download is canceled as soon as either one
+ * passes it. Bodies with any other encoding are treated as unreadable.
+ *
+ * @see HtmlFetcher#isHtml(Map)
+ * @see HtmlFetcher#isRedirect(int, Map)
+ */
+public class HtmlBodyHandler implements HttpResponse.BodyHandler<String> {
+	/** Constant for default max number of bytes downloaded for a page */
+	public static final long MAX_BYTES_DEFAULT = 5 * 1024 * 1024;
+
+	/** Constant for content-length header */
+	public static final String CONTENT_LENGTH = "Content-Length";
+	/** Constant for content-encoding header */
+	public static final String CONTENT_ENCODING = "Content-Encoding";
+	/** Constant for accept-encoding header */
+	public static final String ACCEPT_ENCODING = "Accept-Encoding";
+	/** Constant for the content encodings this handler can decode */
+	public static final String SUPPORTED_ENCODINGS = "gzip, deflate";
+
+	/** Max number of bytes downloaded for a page */
+	private final long maxBytes;
+
+	/**
+	 * Initializes a handler with the default byte cap.
+	 *
+	 * @see #HtmlBodyHandler(long)
+	 */
+	public HtmlBodyHandler() {
+		this(MAX_BYTES_DEFAULT);
+	}
+
+	/**
+	 * Initializes a handler with the specified byte cap.
+	 *
+	 * @param maxBytes max number of bytes downloaded for a page; should be
+	 *   greater than 0
+	 */
+	public HtmlBodyHandler(long maxBytes) {
+		this.maxBytes = maxBytes < 1 ? MAX_BYTES_DEFAULT : maxBytes;
+	}
+
+	@Override
+	public BodySubscriber<String> apply(ResponseInfo responseInfo) {
+		int statusCode = responseInfo.statusCode();
+		Map<String, List<String>> headers = responseInfo.headers().map();
+
+		if (HtmlFetcher.isRedirect(statusCode, headers)) {
+			// redirect bodies are tiny, so drain them to keep the connection reusable
+			return BodySubscribers.replacing(null);
+		}
+
+		long length = responseInfo.headers().firstValueAsLong(CONTENT_LENGTH).orElse(-1);
+		String encoding = responseInfo.headers().firstValue(CONTENT_ENCODING).orElse("identity").strip().toLowerCase();
+		if (statusCode != HtmlFetcher.OK || !HtmlFetcher.isHtml(headers) || length > this.maxBytes || !isSupported(encoding)) {
+			return new CancelingSubscriber();
+		}
+
+		return new CappedSubscriber(this.maxBytes, getCharset(headers), encoding);
+	}
+
+	/**
+	 * Returns the charset named in the "Content-Type" header, or UTF-8 if there
+	 * is none or it is not supported.
+	 *
+	 * @param headers the HTTP/1.1 headers to parse
+	 * @return the charset of the body
+	 */
+	public static Charset getCharset(Map<String, List<String>> headers) {
+		for (String value : HtmlFetcher.getHeader(headers, HtmlFetcher.CONTENT_TYPE)) {
+			for (String param : value.split(";")) {
+				param = param.strip();
+				if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+					try {
+						return Charset.forName(param.substring(8).replace("\"", "").strip());
+					} catch (Exception e) {
+						return StandardCharsets.UTF_8;
+					}
+				}
+			}
+		}
+		return StandardCharsets.UTF_8;
+	}
+
+	/**
+	 * Returns {@code true} if the content encoding is one this handler can
+	 * decode.
+	 *
+	 * @param encoding the lower case value of the "Content-Encoding" header
+	 * @return {@code true} if the body can be decoded
+	 */
+	private static boolean isSupported(String encoding) {
+		switch (encoding) {
+			case "identity":
+			case "gzip":
+			case "x-gzip":
+			case "deflate":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Cancels the body as soon as it is subscribed to, so none of it is
+	 * downloaded. The body is {@code null}.
+	 */
+	private static class CancelingSubscriber implements BodySubscriber<String> {
+		@Override
+		public CompletionStage<String> getBody() {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			subscription.cancel();
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> item) {
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+		}
+
+		@Override
+		public void onComplete() {
+		}
+	}
+
+	/**
+	 * Collects the body into a string unless it grows larger than the byte cap,
+	 * in which case the rest of the body is canceled and the body is
+	 * {@code null}. Compressed bodies are decompressed as each chunk arrives.
+	 */
+	private static class CappedSubscriber implements BodySubscriber<String> {
+		/** Max number of bytes to collect */
+		private final long maxBytes;
+		/** The charset used to decode the body */
+		private final Charset charset;
+		/** Decompresses the chunks and collects the decoded bytes */
+		private final Decoder decoder;
+		/** Completed with the decoded body */
+		private final CompletableFuture<String> body;
+		/** The number of bytes received so far, before decompression */
+		private long received;
+		/** The subscription to cancel when over the cap */
+		private Flow.Subscription subscription;
+
+		private CappedSubscriber(long maxBytes, Charset charset, String encoding) {
+			this.maxBytes = maxBytes;
+			this.charset = charset;
+			this.decoder = new Decoder(encoding, maxBytes);
+			this.body = new CompletableFuture<>();
+			this.received = 0;
+		}
+
+		@Override
+		public CompletionStage<String> getBody() {
+			return this.body;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> item) {
+			if (this.body.isDone()) {
+				return;
+			}
+			try {
+				for (ByteBuffer buffer : item) {
+					this.received += buffer.remaining();
+					byte[] chunk = new byte[buffer.remaining()];
+					buffer.get(chunk);
+					if (this.received > this.maxBytes || !this.decoder.write(chunk)) {
+						this.subscription.cancel();
+						this.decoder.close();
+						this.body.complete(null);
+						return;
+					}
+				}
+			} catch (IOException e) {
+				this.subscription.cancel();
+				this.decoder.close();
+				this.body.completeExceptionally(e);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			this.decoder.close();
+			this.body.completeExceptionally(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			if (this.body.isDone()) {
+				return;
+			}
+			try {
+				this.body.complete(new String(this.decoder.finish(), this.charset));
+			} catch (IOException e) {
+				this.body.completeExceptionally(e);
+			} finally {
+				this.decoder.close();
+			}
+		}
+	}
+
+	/**
+	 * Decompresses a body one chunk at a time according to its content
+	 * encoding, keeping only the decoded bytes. Gzip bodies have their header
+	 * skipped and their trailer checked; deflate bodies are sniffed for a zlib
+	 * header, since some servers send raw deflate data instead.
+	 */
+	private static class Decoder {
+		/** Gzip header flag for a CRC16 of the header */
+		private static final int FHCRC = 2;
+		/** Gzip header flag for extra fields */
+		private static final int FEXTRA = 4;
+		/** Gzip header flag for a file name */
+		private static final int FNAME = 8;
+		/** Gzip header flag for a comment */
+		private static final int FCOMMENT = 16;
+
+		/** The lower case value of the "Content-Encoding" header */
+		private final String encoding;
+		/** Max number of decoded bytes */
+		private final long maxBytes;
+		/** The decoded bytes so far */
+		private final ByteArrayOutputStream decoded;
+		/** Bytes after the end of the deflate data; the gzip trailer */
+		private final ByteArrayOutputStream trailer;
+		/** Checksum of the decoded bytes, for the gzip trailer */
+		private final CRC32 crc;
+		/** Buffer the inflater writes into */
+		private final byte[] buffer;
+		/** Bytes held back until the header can be read */
+		private byte[] pending;
+		/** Decompresses the deflate data, or {@code null} until the header is read */
+		private Inflater inflater;
+
+		private Decoder(String encoding, long maxBytes) {
+			this.encoding = encoding;
+			this.maxBytes = maxBytes;
+			this.decoded = new ByteArrayOutputStream();
+			this.trailer = new ByteArrayOutputStream();
+			this.crc = new CRC32();
+			this.buffer = new byte[8192];
+			this.pending = new byte[0];
+			this.inflater = null;
+		}
+
+		/**
+		 * Decodes the next chunk of the body.
+		 *
+		 * @param chunk the bytes as received
+		 * @return {@code false} if the decoded body grew larger than the cap
+		 * @throws IOException if the body is not validly encoded
+		 */
+		private boolean write(byte[] chunk) throws IOException {
+			if (this.encoding.equals("identity")) {
+				if (this.decoded.size() + chunk.length > this.maxBytes) {
+					return false;
+				}
+				this.decoded.writeBytes(chunk);
+				return true;
+			}
+
+			if (this.inflater == null) {
+				byte[] bytes = Arrays.copyOf(this.pending, this.pending.length + chunk.length);
+				System.arraycopy(chunk, 0, bytes, this.pending.length, chunk.length);
+				int start = readHeader(bytes);
+				if (start < 0) {
+					this.pending = bytes;
+					return true;
+				}
+				this.pending = null;
+				chunk = Arrays.copyOfRange(bytes, start, bytes.length);
+			}
+
+			if (this.inflater.finished()) {
+				this.trailer.writeBytes(chunk);
+				return true;
+			}
+
+			this.inflater.setInput(chunk);
+			try {
+				while (!this.inflater.finished() && !this.inflater.needsInput()) {
+					int read = this.inflater.inflate(this.buffer);
+					if (read == 0 && this.inflater.needsDictionary()) {
+						throw new ZipException("Compressed body needs a preset dictionary");
+					}
+					if (this.decoded.size() + read > this.maxBytes) {
+						return false;
+					}
+					this.decoded.write(this.buffer, 0, read);
+					this.crc.update(this.buffer, 0, read);
+				}
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			}
+
+			int remaining = this.inflater.getRemaining();
+			if (this.inflater.finished() && remaining > 0) {
+				this.trailer.write(chunk, chunk.length - remaining, remaining);
+			}
+			return true;
+		}
+
+		/**
+		 * Reads the gzip or zlib header at the start of the body and creates the
+		 * inflater that matches it.
+		 *
+		 * @param bytes the bytes received so far
+		 * @return the index the deflate data starts at, or -1 if the header is not
+		 *   complete yet
+		 * @throws IOException if the gzip header is not valid
+		 */
+		private int readHeader(byte[] bytes) throws IOException {
+			if (this.encoding.equals("deflate")) {
+				if (bytes.length < 2) {
+					return -1;
+				}
+				int cmf = bytes[0] & 0xff;
+				int flg = bytes[1] & 0xff;
+				boolean zlib = (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+				this.inflater = new Inflater(!zlib);
+				return 0;
+			}
+
+			if (bytes.length < 10) {
+				return -1;
+			}
+			if ((bytes[0] & 0xff) != 0x1f || (bytes[1] & 0xff) != 0x8b || bytes[2] != 8) {
+				throw new ZipException("Not in GZIP format");
+			}
+			int flags = bytes[3] & 0xff;
+			int index = 10;
+			if ((flags & FEXTRA) != 0) {
+				if (bytes.length < index + 2) {
+					return -1;
+				}
+				index += 2 + ((bytes[index] & 0xff) | (bytes[index + 1] & 0xff) << 8);
+			}
+			for (int flag : new int[] { FNAME, FCOMMENT }) {
+				if ((flags & flag) != 0) {
+					while (index < bytes.length && bytes[index] != 0) {
+						index++;
+					}
+					index++;
+				}
+			}
+			if ((flags & FHCRC) != 0) {
+				index += 2;
+			}
+			if (index > bytes.length) {
+				return -1;
+			}
+			this.inflater = new Inflater(true);
+			return index;
+		}
+
+		/**
+		 * Returns the decoded body once all of it has been received.
+		 *
+		 * @return the decoded bytes
+		 * @throws IOException if the body ended early or its trailer does not
+		 *   match
+		 */
+		private byte[] finish() throws IOException {
+			if (this.encoding.equals("identity")) {
+				return this.decoded.toByteArray();
+			}
+			if (this.inflater == null || !this.inflater.finished()) {
+				throw new EOFException("Unexpected end of compressed body");
+			}
+			if (!this.encoding.equals("deflate")) {
+				byte[] bytes = this.trailer.toByteArray();
+				if (bytes.length < 8) {
+					throw new EOFException("Unexpected end of GZIP trailer");
+				}
+				if (littleEndian(bytes, 0) != this.crc.getValue()
+						|| littleEndian(bytes, 4) != (this.inflater.getBytesWritten() & 0xffffffffL)) {
+					throw new ZipException("Corrupt GZIP trailer");
+				}
+			}
+			return this.decoded.toByteArray();
+		}
+
+		/**
+		 * Releases the inflater's native memory.
+		 */
+		private void close() {
+			if (this.inflater != null) {
+				this.inflater.end();
+			}
+		}
+
+		/**
+		 * Reads an unsigned 32-bit little endian value.
+		 *
+		 * @param bytes the bytes to read from
+		 * @param offset the index of the first byte
+		 * @return the value read
+		 */
+		private static long littleEndian(byte[] bytes, int offset) {
+			return (bytes[offset] & 0xffL) | (bytes[offset + 1] & 0xffL) << 8
+					| (bytes[offset + 2] & 0xffL) << 16 | (bytes[offset + 3] & 0xffL) << 24;
+		}
+	}
+}
@@ -1,8 +1,11 @@
 package com.crawler;
 
-import java.util.regex.Pattern;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.text.StringEscapeUtils;
+import org.apache.commons.text.translate.EntityArrays;
 
 /**
  * Cleans simple, validating HTML 4/5 into plain text. For simplicity, this
@@ -11,15 +14,31 @@ import org.apache.commons.text.StringEscapeUtils;
  * but does not check that the removed entity was valid.
  *
  * <p>
- * Look at the "See Also" section for useful classes and methods for
- * implementing this class.
+ * Every method is a single scan over the html that never looks at a character
+ * more than a constant number of times, so the time taken is linear in the
+ * length of the html no matter how it is nested or broken. The text is built in
+ * a {@link StringBuilder} reused by each thread, and {@link #stripHtml(String)}
+ * removes comments, block elements, tags, and entities in the same scan.
  *
- * @see String#replaceAll(String, String)
- * @see Pattern#DOTALL
- * @see Pattern#CASE_INSENSITIVE
  * @see StringEscapeUtils#unescapeHtml4(String)
  */
 public class HtmlCleaner {
+	/** The block elements removed by {@link #stripBlockElements(String)} */
+	private static final String[] BLOCK_ELEMENTS = { "head", "style", "script", "noscript", "iframe", "svg" };
+	/** The HTML 4 entities and their characters, keyed without the {@code &} and {@code ;} */
+	private static final Map<String, String> ENTITIES = new HashMap<>();
+	/** Largest builder kept for reuse, in characters */
+	private static final int BUILDER_LIMIT = 1 << 20;
+	/** The builder reused by each thread */
+	private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(StringBuilder::new);
+
+	static {
+		for (Map<CharSequence, CharSequence> entities : List.of(EntityArrays.BASIC_UNESCAPE,
+				EntityArrays.ISO8859_1_UNESCAPE, EntityArrays.HTML40_EXTENDED_UNESCAPE)) {
+			entities.forEach((entity, text) -> ENTITIES.put(entity.subSequence(1, entity.length() - 1).toString(), text.toString()));
+		}
+	}
+
 	/**
 	 * Replaces all HTML tags with an empty string. For example, the html
 	 * {@code A<b>B</b>C} will become {@code ABC}.
@@ -29,12 +48,9 @@ public class HtmlCleaner {
 	 *
 	 * @param html text including HTML tags to remove
 	 * @return text without any HTML tags
-	 *
-	 * @see String#replaceAll(String, String)
 	 */
 	public static String stripTags(String html) {
-		String regex = "<[^<>]*>";
-		return html.replaceAll(regex, "");
+		return clean(html, false, null, true, false);
 	}
 
 	/**
@@ -44,21 +60,20 @@ public class HtmlCleaner {
 	 * {@code &gt;&dash;x} will become {@code >x} with the unrecognized
 	 * {@code &dash;} entity getting removed. (The {@code &dash;} entity is valid
 	 * HTML 5, but not HTML 4 which this code uses.) Should also work for entities
-	 * that use decimal syntax like {@code &#8211;} or {@code &#x2013}.
+	 * that use decimal syntax like {@code &#8211;} or {@code &#x2013;}. Only the
+	 * entity itself is removed: an {@code &} followed by text without a
+	 * {@code ;} before the next whitespace is left as it is.
 	 *
 	 * <p>
 	 * <em>(View this comment as HTML in the "Javadoc" view in Eclipse.)</em>
 	 *
 	 * @see StringEscapeUtils#unescapeHtml4(String)
-	 * @see String#replaceAll(String, String)
 	 *
 	 * @param html text including HTML entities to remove
 	 * @return text with all HTML entities converted or removed
 	 */
-	public static String stripEntities(String html) { 
-		String stripped = StringEscapeUtils.unescapeHtml4(html);
-		String regex = "&[^\\s].*;";
-		return stripped.replaceAll(regex, "");
+	public static String stripEntities(String html) {
+		return clean(html, false, null, false, true);
 	}
 
 	/**
@@ -82,12 +97,9 @@ public class HtmlCleaner {
 	 *
 	 * @param html text including HTML comments to remove
 	 * @return text without any HTML comments
-	 *
-	 * @see String#replaceAll(String, String)
 	 */
 	public static String stripComments(String html) {
-		String regex = "<!--[\\s\\S]*?-->";
-		return html.replaceAll(regex, "");
+		return clean(html, true, null, false, false);
 	}
 
 	/**
@@ -107,14 +119,9 @@ public class HtmlCleaner {
 	 * @param html text including HTML elements to remove
 	 * @param name name of the HTML element (like "style" or "script")
 	 * @return text without that HTML element
-	 *
-	 * @see String#formatted(Object...)
-	 * @see String#format(String, Object...)
-	 * @see String#replaceAll(String, String)
 	 */
 	public static String stripElement(String html, String name) {
-		String regex = String.format("(?i)<\\b%s\\b[\\s\\S]*?>[\\s\\S]*?<\\/\\b%s\\b[\\s\\S]*?>", name, name);
-		return html.replaceAll(regex, "");
+		return clean(html, false, new String[] { name }, false, false);
 	}
 
 	/**
@@ -126,14 +133,7 @@ public class HtmlCleaner {
 	 * @return text clean of any comments and certain HTML block elements
 	 */
 	public static String stripBlockElements(String html) {
-		html = stripComments(html);
-		html = stripElement(html, "head");
-		html = stripElement(html, "style");
-		html = stripElement(html, "script");
-		html = stripElement(html, "noscript");
-		html = stripElement(html, "iframe");
-		html = stripElement(html, "svg");
-		return html;
+		return clean(html, true, BLOCK_ELEMENTS, false, false);
 	}
 
 	/**
@@ -141,14 +141,216 @@ public class HtmlCleaner {
 	 *
 	 * @see #stripBlockElements(String)
 	 * @see #stripTags(String)
+	 * @see #stripEntities(String)
 	 *
 	 * @param html the HTML to strip tags and elements from
 	 * @return text clean of any HTML tags and certain block elements
 	 */
 	public static String stripHtml(String html) {
-		html = stripBlockElements(html);
-		html = stripTags(html);
-		html = stripEntities(html);
-		return html;
+		return clean(html, true, BLOCK_ELEMENTS, true, true);
+	}
+
+	/**
+	 * Scans the html once, copying the text that is kept.
+	 *
+	 * <p>
+	 * Each search ahead either consumes what it scanned or, if it fails, can
+	 * never succeed later in the html and is switched off, which keeps the scan
+	 * linear. A comment or element without an end is left as it is.
+	 *
+	 * @param html the html to clean
+	 * @param comments whether to remove comments
+	 * @param elements the elements to remove with their contents, or {@code null}
+	 * @param tags whether to remove tags
+	 * @param entities whether to convert or remove entities
+	 * @return the cleaned text
+	 */
+	private static String clean(String html, boolean comments, String[] elements, boolean tags, boolean entities) {
+		StringBuilder text = BUILDER.get();
+		text.setLength(0);
+		text.ensureCapacity(html.length());
+		boolean[] unclosed = elements == null ? null : new boolean[elements.length];
+		int length = html.length();
+		int i = 0;
+		while (i < length) {
+			char c = html.charAt(i);
+			if (c == '<') {
+				if (comments && html.startsWith("<!--", i)) {
+					int end = html.indexOf("-->", i + 4);
+					if (end >= 0) {
+						i = end + 3;
+						continue;
+					}
+					comments = false;
+				}
+				if (elements != null) {
+					int end = skipElement(html, i, elements, unclosed);
+					if (end > i) {
+						i = end;
+						continue;
+					}
+				}
+				if (tags) {
+					int end = i + 1;
+					while (end < length && html.charAt(end) != '<' && html.charAt(end) != '>') {
+						end++;
+					}
+					if (end < length && html.charAt(end) == '>') {
+						i = end + 1;
+						continue;
+					}
+				}
+			} else if (c == '&' && entities) {
+				i = appendEntity(html, i, text);
+				continue;
+			}
+			text.append(c);
+			i++;
+		}
+
+		String cleaned = text.toString();
+		if (text.capacity() > BUILDER_LIMIT) {
+			BUILDER.remove();
+		}
+		return cleaned;
+	}
+
+	/**
+	 * Skips an element and its contents if one of the names starts at the index.
+	 *
+	 * @param html the html
+	 * @param start the index of the {@code <}
+	 * @param names the element names
+	 * @param unclosed set for a name once it has no closing tag left in the html
+	 * @return the index just past the closing tag, or {@code start} if no
+	 *   element was skipped
+	 */
+	private static int skipElement(String html, int start, String[] names, boolean[] unclosed) {
+		for (int n = 0; n < names.length; n++) {
+			String name = names[n];
+			if (unclosed[n] || !isName(html, start + 1, name)) {
+				continue;
+			}
+			int open = html.indexOf('>', start + 1 + name.length());
+			int close = open < 0 ? -1 : indexOfClosingTag(html, name, open + 1);
+			int end = close < 0 ? -1 : html.indexOf('>', close + 2 + name.length());
+			if (end < 0) {
+				unclosed[n] = true;
+				continue;
+			}
+			return end + 1;
+		}
+		return start;
+	}
+
+	/**
+	 * Finds the closing tag of an element, ignoring case.
+	 *
+	 * @param html the html
+	 * @param name the element name
+	 * @param from where to start looking
+	 * @return the index of the closing tag, or -1 if there is none
+	 */
+	private static int indexOfClosingTag(String html, String name, int from) {
+		int i = from;
+		while ((i = html.indexOf("</", i)) >= 0) {
+			if (isName(html, i + 2, name)) {
+				return i;
+			}
+			i += 2;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns {@code true} if the name, ignoring case, starts at the index and is
+	 * not followed by another word character.
+	 *
+	 * @param html the html
+	 * @param start where the name should start
+	 * @param name the name
+	 * @return {@code true} if the name is at the index
+	 */
+	private static boolean isName(String html, int start, String name) {
+		int end = start + name.length();
+		return html.regionMatches(true, start, name, 0, name.length())
+				&& (end >= html.length() || !isWordChar(html.charAt(end)));
+	}
+
+	/**
+	 * Converts or removes the entity at the index. An {@code &} that does not
+	 * start an entity is copied as it is, along with the text scanned after it.
+	 *
+	 * @param html the html
+	 * @param start the index of the {@code &}
+	 * @param text where to append the result
+	 * @return the index to continue from
+	 */
+	private static int appendEntity(String html, int start, StringBuilder text) {
+		int length = html.length();
+		int end = start + 1;
+		while (end < length && !isEntityEnd(html.charAt(end))) {
+			end++;
+		}
+		if (end >= length || html.charAt(end) != ';' || end == start + 1) {
+			text.append(html, start, end);
+			return end;
+		}
+
+		if (html.charAt(start + 1) == '#') {
+			int codePoint = parseCodePoint(html, start + 2, end);
+			if (codePoint >= 0) {
+				text.appendCodePoint(codePoint);
+			}
+		} else {
+			String character = ENTITIES.get(html.substring(start + 1, end));
+			if (character != null) {
+				text.append(character);
+			}
+		}
+		return end + 1;
+	}
+
+	/**
+	 * Parses the decimal or {@code x}-prefixed hexadecimal number of a numeric
+	 * entity.
+	 *
+	 * @param html the html
+	 * @param start the index after {@code &#}
+	 * @param end the index of the {@code ;}
+	 * @return the code point, or -1 if it is not a valid number or code point
+	 */
+	private static int parseCodePoint(String html, int start, int end) {
+		int radix = 10;
+		if (start < end && (html.charAt(start) == 'x' || html.charAt(start) == 'X')) {
+			radix = 16;
+			start++;
+		}
+		if (start == end || end - start > 8) {
+			return -1;
+		}
+		int codePoint = 0;
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(html.charAt(i), radix);
+			if (digit < 0) {
+				return -1;
+			}
+			codePoint = codePoint * radix + digit;
+		}
+		return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+	}
+
+	/**
+	 * Returns {@code true} if the character ends the scan for an entity name.
+	 *
+	 * @param c the character
+	 * @return {@code true} for {@code ;}, {@code &}, {@code <}, or whitespace
+	 */
+	private static boolean isEntityEnd(char c) {
+		return c == ';' || c == '&' || c == '<' || Character.isWhitespace(c);
+	}
+
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
 	}
 }
@@ -1,13 +1,14 @@
 package com.crawler;
 
-import java.io.BufferedReader;
-import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * A specialized version of {@link HttpsFetcher} that follows redirects and
@@ -25,6 +26,107 @@ public class HtmlFetcher {
 	public static final String STATUS_CODE = ":Status";
 	/** Constant for 200 OK status code */
 	public static final int OK = 200;
+	/** Constant for 429 Too Many Requests status code */
+	public static final int TOO_MANY_REQUESTS = 429;
+	/** Constant for 503 Service Unavailable status code */
+	public static final int SERVICE_UNAVAILABLE = 503;
+
+	/** Handles the body of every fetched page, shared since it holds no state */
+	private static volatile HtmlBodyHandler bodyHandler = new HtmlBodyHandler();
+
+	/** Cache of validators for previously fetched pages, or {@code null} if disabled */
+	private static volatile ValidatorCache cache;
+
+	/** Scheduler told about throttled responses, or {@code null} if disabled */
+	private static volatile HostScheduler scheduler;
+
+	/**
+	 * The html of a page and the url it was fetched from once redirects were
+	 * followed.
+	 */
+	public static class Page {
+		/** The url the html was fetched from */
+		private final URL url;
+		/** The html */
+		private final String html;
+
+		/**
+		 * Initializes a page.
+		 *
+		 * @param url the url the html was fetched from
+		 * @param html the html
+		 */
+		public Page(URL url, String html) {
+			this.url = url;
+			this.html = html;
+		}
+
+		/**
+		 * Returns the url the html was fetched from, after redirects.
+		 *
+		 * @return the url
+		 */
+		public URL getUrl() {
+			return this.url;
+		}
+
+		/**
+		 * Returns the html.
+		 *
+		 * @return the html
+		 */
+		public String getHtml() {
+			return this.html;
+		}
+
+		/**
+		 * Returns the page, or {@code null} if there is no html.
+		 *
+		 * @param url the url the html was fetched from
+		 * @param html the html, or {@code null}
+		 * @return the page, or {@code null}
+		 */
+		private static Page of(URL url, String html) {
+			return html != null ? new Page(url, html) : null;
+		}
+	}
+
+	/**
+	 * Sets the max number of bytes downloaded for a page. Larger pages are
+	 * treated the same as non-HTML resources.
+	 *
+	 * @param maxBytes max number of bytes downloaded for a page
+	 *
+	 * @see HtmlBodyHandler
+	 */
+	public static void setMaxBytes(long maxBytes) {
+		bodyHandler = new HtmlBodyHandler(maxBytes);
+	}
+
+	/**
+	 * Sets the cache used to make requests for previously fetched pages
+	 * conditional, or {@code null} to fetch every page in full.
+	 *
+	 * @param cache the cache to use
+	 *
+	 * @see ValidatorCache
+	 */
+	public static void setCache(ValidatorCache cache) {
+		HtmlFetcher.cache = cache;
+	}
+
+	/**
+	 * Sets the scheduler to tell about 429 and 503 responses so it can slow down
+	 * requests to that host, or {@code null} to not report them.
+	 *
+	 * @param scheduler the scheduler to use
+	 *
+	 * @see HostScheduler#backoff(URL, String)
+	 */
+	public static void setScheduler(HostScheduler scheduler) {
+		HtmlFetcher.scheduler = scheduler;
+	}
+
 	/**
 	 * Returns {@code true} if and only if there is a "Content-Type" header and
 	 * the first value of that header starts with the value "text/html"
@@ -66,61 +168,102 @@ public class HtmlFetcher {
 	 * @return {@code true} if the headers indicate the content type is HTML
 	 */
 	public static boolean isRedirect(Map<String, List<String>> headers) {
-		int statusCode = getStatusCode(headers);
+		return isRedirect(getStatusCode(headers), headers);
+	}
+
+	/**
+	 * Returns {@code true} if and only if the HTTP status code is between 300 and
+	 * 399 (inclusive) and there is a "Location" header with at least one value.
+	 *
+	 * @param statusCode the HTTP status code of the response
+	 * @param headers the HTTP/1.1 headers to parse
+	 * @return {@code true} if the status and headers indicate a redirect
+	 */
+	public static boolean isRedirect(int statusCode, Map<String, List<String>> headers) {
 		return 300 <= statusCode && statusCode < 400 && getHeader(headers, LOCATION).size() > 0;
 	}
 
 	/**
-	 * Fetches the resource at the URL using HTTP/1.1 and sockets. If the status
-	 * code is 200 and the content type is HTML, returns the HTML as a single
-	 * string. If the status code is a valid redirect, will follow that redirect
-	 * if the number of redirects is greater than 0. Otherwise, returns
-	 * {@code null}.
+	 * Fetches the resource at the URL using the shared client of
+	 * {@link HttpsFetcher}. If the status code is 200 and the content type is
+	 * HTML, returns the HTML as a single string. The body is only downloaded in
+	 * that case, and only if it is within the byte cap. If the status code is a valid
+	 * redirect, will follow that redirect if the number of redirects is greater
+	 * than 0. Otherwise, returns {@code null}.
 	 *
 	 * @param url the url to fetch
 	 * @param redirects the number of times to follow redirects
 	 * @return the html or {@code null} if unable to fetch the resource or the
 	 *         resource is not html
 	 *
-	 * @see HttpsFetcher#openConnection(URL)
-	 * @see HttpsFetcher#printGetRequest(PrintWriter, URL)
-	 * @see HttpsFetcher#getHeaderFields(BufferedReader)
-	 *
-	 * @see String#join(CharSequence, CharSequence...)
+	 * @see HttpsFetcher#send(HttpRequest, java.net.http.HttpResponse.BodyHandler)
+	 * @see HtmlBodyHandler
 	 *
 	 * @see #isHtml(Map)
-	 * @see #isRedirect(Map)
+	 * @see #isRedirect(int, Map)
 	 */
 	public static String fetch(URL url, int redirects) {
-		String html = null;
 		try {
-			HttpResponse<String> httpResponse = HttpsFetcher.fetchUrl(url);
-			Map<String, List<String>> headers = httpResponse.headers().map();
-			boolean isHtml = isHtml(headers);
-			boolean follow = isRedirect(headers);
-			if (!isHtml && !follow) {
-				return null;
-			}
+			HttpResponse<String> httpResponse = HttpsFetcher.send(newRequest(url), bodyHandler);
 			int redirectCount = 0;
-			while (follow && redirectCount < redirects) {
+			while (isRedirect(httpResponse.statusCode(), httpResponse.headers().map()) && redirectCount < redirects) {
 				redirectCount++;
-				url = new URL(getHeader(headers, LOCATION).get(0));
-				httpResponse = HttpsFetcher.fetchUrl(url);
-				headers = httpResponse.headers().map();
-				follow = isRedirect(headers);
+				url = LinkExtractor.resolveUrl(url, getHeader(httpResponse.headers().map(), LOCATION).get(0));
+				httpResponse = HttpsFetcher.send(newRequest(url), bodyHandler);
 			}
-			if (!isHtml(headers) || getStatusCode(headers) != OK) {
-				return null;
+			String html = getHtml(url, httpResponse);
+			if (html == null && isUncached(httpResponse)) {
+				html = getHtml(url, HttpsFetcher.send(newRequest(url), bodyHandler));
 			}
-			String content = httpResponse.body();
-			return content;
+			return html;
 		} catch (Exception e) {
-			html = null;
+			return null;
 		}
+	}
 
+	/**
+	 * Asynchronous version of {@link #fetch(URL, int)}. The returned future is
+	 * completed with the HTML, or with {@code null} if unable to fetch the
+	 * resource or the resource is not html. It completes exceptionally with a
+	 * {@link ThrottledException} if the host answered with a 429 or 503 and a
+	 * scheduler is set, so the caller can try again once the host's pause is
+	 * over. Otherwise it only completes exceptionally if it is cancelled, which
+	 * also cancels the request in flight, even part way through the redirects.
+	 *
+	 * @param url the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @return a future for the html or {@code null}
+	 *
+	 * @see #fetchPageAsync(URL, int)
+	 */
+	public static CompletableFuture<String> fetchAsync(URL url, int redirects) {
+		CompletableFuture<Page> page = fetchPageAsync(url, redirects);
+		CompletableFuture<String> html = page.thenApply(fetched -> fetched != null ? fetched.getHtml() : null);
+		html.whenComplete((result, e) -> {
+			if (html.isCancelled()) {
+				page.cancel(true);
+			}
+		});
 		return html;
 	}
 
+	/**
+	 * Same as {@link #fetchAsync(URL, int)}, but completed with the page the
+	 * redirects led to, so links in its html can be resolved against the url it
+	 * was actually fetched from.
+	 *
+	 * @param url the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @return a future for the page or {@code null}
+	 *
+	 * @see HttpsFetcher#sendAsync(HttpRequest, java.net.http.HttpResponse.BodyHandler)
+	 */
+	public static CompletableFuture<Page> fetchPageAsync(URL url, int redirects) {
+		CompletableFuture<Page> page = new CompletableFuture<>();
+		fetchPage(url, redirects, page);
+		return page;
+	}
+
 	/**
 	 * Converts the {@link String} url into a {@link URL} object and then calls
 	 * {@link #fetch(URL, int)}.
@@ -134,7 +277,7 @@ public class HtmlFetcher {
 	 */
 	public static String fetch(String url, int redirects) {
 		try {
-			return fetch(new URL(url), redirects);
+			return fetch(LinkExtractor.toUrl(url), redirects);
 		}
 		catch (MalformedURLException e) {
 			return null;
@@ -166,13 +309,145 @@ public class HtmlFetcher {
 		return fetch(url, 0);
 	}
 	
+	/**
+	 * Helper function to send the request for one hop of an asynchronous fetch
+	 * and complete the page once a response that is not a redirect arrives.
+	 * Each hop is sent with {@link #send(URL, CompletableFuture)}, so cancelling
+	 * the page cancels whichever hop is in flight
+	 * @param url the url of this hop
+	 * @param redirects the number of redirects left to follow
+	 * @param page the page to complete
+	 */
+	private static void fetchPage(URL url, int redirects, CompletableFuture<Page> page) {
+		send(url, page).whenComplete((httpResponse, e) -> {
+			if (e != null || page.isDone()) {
+				page.complete(null);
+				return;
+			}
+			try {
+				Map<String, List<String>> headers = httpResponse.headers().map();
+				if (isRedirect(httpResponse.statusCode(), headers) && redirects > 0) {
+					fetchPage(LinkExtractor.resolveUrl(url, getHeader(headers, LOCATION).get(0)), redirects - 1, page);
+					return;
+				}
+				String html = getHtml(url, httpResponse);
+				if (html == null && isUncached(httpResponse)) {
+					send(url, page).whenComplete((refetched, ex) -> {
+						try {
+							page.complete(ex == null ? Page.of(url, getHtml(url, refetched)) : null);
+						} catch (ThrottledException throttled) {
+							page.completeExceptionally(throttled);
+						} catch (RuntimeException failed) {
+							page.complete(null);
+						}
+					});
+					return;
+				}
+				page.complete(Page.of(url, html));
+			} catch (ThrottledException throttled) {
+				page.completeExceptionally(throttled);
+			} catch (MalformedURLException | RuntimeException failed) {
+				page.complete(null);
+			}
+		});
+	}
+
+	/**
+	 * Helper function to send a request for a page, cancelling it if the page
+	 * is cancelled
+	 * @param url the url to request
+	 * @param page the page the request is for
+	 * @return the response
+	 */
+	private static CompletableFuture<HttpResponse<String>> send(URL url, CompletableFuture<Page> page) {
+		CompletableFuture<HttpResponse<String>> response = HttpsFetcher.sendAsync(newRequest(url), bodyHandler);
+		page.whenComplete((result, e) -> {
+			if (page.isCancelled()) {
+				response.cancel(true);
+			}
+		});
+		return response;
+	}
+
+	/**
+	 * Helper function to create the request for a page, asking for a compressed
+	 * body that {@link HtmlBodyHandler} knows how to decode, and making it
+	 * conditional if the page is cached
+	 * @param url the url to request
+	 * @return the request
+	 */
+	private static HttpRequest newRequest(URL url) {
+		HttpRequest.Builder request = HttpsFetcher.newRequest(url)
+				.header(HtmlBodyHandler.ACCEPT_ENCODING, HtmlBodyHandler.SUPPORTED_ENCODINGS);
+		ValidatorCache cache = HtmlFetcher.cache;
+		if (cache != null) {
+			cache.addValidators(url.toString(), request);
+		}
+		return request.build();
+	}
+
+	/**
+	 * Returns {@code true} if the exception a fetch failed with, or its cause,
+	 * is a {@link ThrottledException}.
+	 *
+	 * @param e the exception a fetch failed with
+	 * @return {@code true} if the url was throttled
+	 *
+	 * @see #fetchAsync(URL, int)
+	 */
+	public static boolean isThrottled(Throwable e) {
+		return e instanceof ThrottledException || (e instanceof CompletionException && e.getCause() instanceof ThrottledException);
+	}
+
+	/**
+	 * Helper function to get the html from the final response for a page. A 304
+	 * is answered from the cache, a downloaded page is added to the cache, and
+	 * a throttled response is reported to the scheduler
+	 * @param url the url the response is for
+	 * @param httpResponse the response
+	 * @return the html or {@code null} if the response is not html
+	 * @throws ThrottledException if the response was throttled and a scheduler
+	 *   is set
+	 */
+	private static String getHtml(URL url, HttpResponse<String> httpResponse) throws ThrottledException {
+		HostScheduler scheduler = HtmlFetcher.scheduler;
+		int statusCode = httpResponse.statusCode();
+		if (scheduler != null && (statusCode == TOO_MANY_REQUESTS || statusCode == SERVICE_UNAVAILABLE)) {
+			scheduler.backoff(url, httpResponse.headers().firstValue(HostScheduler.RETRY_AFTER).orElse(null));
+			throw new ThrottledException(url, statusCode);
+		}
+		ValidatorCache cache = HtmlFetcher.cache;
+		if (cache != null && httpResponse.statusCode() == ValidatorCache.NOT_MODIFIED) {
+			return cache.notModified(url.toString());
+		}
+		if (!isHtml(httpResponse.headers().map()) || httpResponse.statusCode() != OK) {
+			return null;
+		}
+		String html = httpResponse.body();
+		if (cache != null && html != null) {
+			cache.store(url.toString(), httpResponse.headers(), html);
+		}
+		return html;
+	}
+	
+	/**
+	 * Helper function to check if a 304 could not be answered from the cache,
+	 * in which case the cache has dropped the page and it should be refetched
+	 * with an unconditional request
+	 * @param httpResponse the response the html could not be read for
+	 * @return {@code true} if the page should be refetched
+	 */
+	private static boolean isUncached(HttpResponse<String> httpResponse) {
+		return HtmlFetcher.cache != null && httpResponse.statusCode() == ValidatorCache.NOT_MODIFIED;
+	}
+
 	/**
 	 * Helper function to get header by name
 	 * @param headers the headers
 	 * @param headerName the name
 	 * @return list of values for the specified header
 	 */
-	private static List<String> getHeader(Map<String, List<String>> headers, String headerName) {
+	static List<String> getHeader(Map<String, List<String>> headers, String headerName) {
 		List<String> header = headers.get(headerName);
 		if (header == null) {
 			header = headers.getOrDefault(headerName.toLowerCase(), new ArrayList<String>());
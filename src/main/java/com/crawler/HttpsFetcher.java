@@ -1,34 +1,171 @@
 package com.crawler;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.net.URI;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * An alternative to using {@link Socket} connections instead of a
- * {@link URLConnection} to fetch the headers and content from a URL on the web.
+ * Fetches the headers and content from a URL on the web using a single,
+ * long-lived {@link HttpClient}. Sharing one client lets every fetch reuse the
+ * same connection pool, so connections (and TLS sessions) to a host are kept
+ * alive and multiplexed over HTTP/2 where the server supports it instead of
+ * being opened again for every page.
+ *
+ * <p>
+ * The client is created lazily with the default settings, or explicitly with
+ * {@link #configure(Duration, Duration, int)} before the crawl starts.
  */
 public class HttpsFetcher {
+	/** Constant for default time allowed to establish a connection */
+	public static final Duration CONNECT_TIMEOUT_DEFAULT = Duration.ofSeconds(10);
+	/** Constant for default time allowed for a whole request */
+	public static final Duration REQUEST_TIMEOUT_DEFAULT = Duration.ofSeconds(30);
+	/** Constant for default number of threads used by the client */
+	public static final int THREADS_DEFAULT = 4;
+
+	/** The shared client, created on first use */
+	private static HttpClient client;
+	/** The bounded executor the shared client runs on */
+	private static ExecutorService executor;
+	/** The timeout applied to each request */
+	private static volatile Duration requestTimeout = REQUEST_TIMEOUT_DEFAULT;
+
+	/**
+	 * Replaces the shared client with one using the given settings. Should be
+	 * called before any fetching starts; a previously configured client is shut
+	 * down once its in-progress requests are done.
+	 *
+	 * @param connectTimeout time allowed to establish a connection
+	 * @param requestTimeout time allowed for a whole request
+	 * @param threads number of threads the client may use; should be at least 1
+	 */
+	public static synchronized void configure(Duration connectTimeout, Duration requestTimeout, int threads) {
+		shutdown();
+		HttpsFetcher.requestTimeout = requestTimeout;
+		executor = Executors.newFixedThreadPool(threads < 1 ? THREADS_DEFAULT : threads, new FetcherThreadFactory());
+		client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.connectTimeout(connectTimeout)
+				.executor(executor)
+				.build();
+	}
+
+	/**
+	 * Returns the shared client, creating it with the default settings if it has
+	 * not been configured.
+	 *
+	 * @return the shared client
+	 */
+	public static synchronized HttpClient getClient() {
+		if (client == null) {
+			configure(CONNECT_TIMEOUT_DEFAULT, REQUEST_TIMEOUT_DEFAULT, THREADS_DEFAULT);
+		}
+		return client;
+	}
+
+	/**
+	 * Stops the threads used by the shared client. The next fetch will create a
+	 * new client with the default settings.
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+		executor = null;
+		client = null;
+	}
+
 	/**
-	 * Fetches the headers and content for the specified URL. The content is
-	 * placed as a list of all the lines fetched under the "Content" key.
+	 * Creates a GET request builder for the specified URL with the configured
+	 * request timeout.
+	 *
+	 * @param url the url to request
+	 * @return the request builder
+	 */
+	public static HttpRequest.Builder newRequest(URL url) {
+		return HttpRequest.newBuilder()
+				.uri(URI.create(url.toString()))
+				.timeout(requestTimeout)
+				.GET();
+	}
+
+	/**
+	 * Fetches the headers and content for the specified URL.
 	 *
 	 * @param url the url to fetch
-	 * @return a map with the headers and content
+	 * @return the response with the headers and content
 	 * @throws IOException if unable to fetch headers and content
-	 * @throws InterruptedException 
+	 * @throws InterruptedException if interrupted while waiting for the response
 	 */
 	public static HttpResponse<String> fetchUrl(URL url) throws IOException, InterruptedException {
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url.toString()))
-                .build();
-        HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
-        return httpResponse;
-	}
-}
\ No newline at end of file
+		return send(newRequest(url).build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	/**
+	 * Sends the request with the shared client and lets the handler decide what
+	 * to do with the content.
+	 *
+	 * @param <T> the type of the response body
+	 * @param request the request to send
+	 * @param handler the handler for the response body
+	 * @return the response with the headers and handled content
+	 * @throws IOException if unable to fetch headers and content
+	 * @throws InterruptedException if interrupted while waiting for the response
+	 */
+	public static <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+		return getClient().send(request, handler);
+	}
+
+	/**
+	 * Starts fetching the headers and content for the specified URL without
+	 * blocking the calling thread. Continuations attached to the returned future
+	 * run on the shared client's executor.
+	 *
+	 * @param url the url to fetch
+	 * @return a future completed with the response, or exceptionally if unable
+	 *   to fetch headers and content
+	 */
+	public static CompletableFuture<HttpResponse<String>> fetchUrlAsync(URL url) {
+		return sendAsync(newRequest(url).build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	/**
+	 * Sends the request with the shared client without blocking the calling
+	 * thread and lets the handler decide what to do with the content.
+	 *
+	 * @param <T> the type of the response body
+	 * @param request the request to send
+	 * @param handler the handler for the response body
+	 * @return a future completed with the response, or exceptionally if unable
+	 *   to fetch headers and content
+	 */
+	public static <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+		return getClient().sendAsync(request, handler);
+	}
+
+	/**
+	 * Creates daemon threads for the shared client so that an unfinished
+	 * request never keeps the JVM alive.
+	 */
+	private static class FetcherThreadFactory implements ThreadFactory {
+		/** Used to number the threads created */
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Fetcher-" + this.count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
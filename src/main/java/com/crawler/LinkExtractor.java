@@ -0,0 +1,273 @@
+package com.crawler;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.text.StringEscapeUtils;
+
+/**
+ * Extracts the links from html in a single pass, without building any
+ * intermediate copy of the document. Only the {@code href} of {@code a} and
+ * {@code area} tags is extracted, and links are resolved against the first
+ * {@code <base href>} if there is one. Comments and the contents of
+ * {@code script}, {@code style}, {@code noscript}, {@code iframe},
+ * {@code svg}, {@code template}, and {@code textarea} elements are skipped.
+ * Attribute values may be double-quoted, single-quoted, or unquoted, and are
+ * unescaped before they are resolved.
+ *
+ * @see HtmlCleaner#stripBlockElements(String)
+ */
+public class LinkExtractor {
+	/** Elements whose contents are never scanned for links */
+	private static final String[] RAW_ELEMENTS = {
+			"script", "style", "noscript", "iframe", "svg", "template", "textarea" };
+
+	/**
+	 * Returns the links in the html, resolved against the base url (or the
+	 * document's {@code <base href>}) and without their fragment.
+	 *
+	 * @param html the html to extract links from
+	 * @param base the url the html was fetched from
+	 * @return the extracted links, in document order
+	 * @throws MalformedURLException if the base url is not valid
+	 */
+	public static List<String> extractLinks(String html, String base) throws MalformedURLException {
+		URL baseUrl = toUrl(base);
+		boolean baseSeen = false;
+		List<String> links = new ArrayList<>();
+		int length = html.length();
+		int i = 0;
+		while ((i = html.indexOf('<', i)) >= 0 && i + 1 < length) {
+			char next = html.charAt(i + 1);
+			if (next == '!' || next == '?' || next == '/') {
+				i = skipMarkup(html, i);
+				continue;
+			}
+			if (!isLetter(next)) {
+				i++;
+				continue;
+			}
+
+			int nameStart = i + 1;
+			int nameEnd = nameStart;
+			while (nameEnd < length && !isSpace(html.charAt(nameEnd)) && html.charAt(nameEnd) != '>' && html.charAt(nameEnd) != '/') {
+				nameEnd++;
+			}
+			boolean link = is(html, nameStart, nameEnd, "a") || is(html, nameStart, nameEnd, "area");
+			boolean baseTag = !baseSeen && is(html, nameStart, nameEnd, "base");
+
+			// scan the attributes, keeping only href
+			String href = null;
+			i = nameEnd;
+			while (i < length && html.charAt(i) != '>') {
+				char c = html.charAt(i);
+				if (isSpace(c) || c == '/') {
+					i++;
+					continue;
+				}
+				int attrStart = i;
+				while (i < length && !isSpace(html.charAt(i)) && html.charAt(i) != '=' && html.charAt(i) != '>') {
+					i++;
+				}
+				int attrEnd = i;
+				while (i < length && isSpace(html.charAt(i))) {
+					i++;
+				}
+				if (i >= length || html.charAt(i) != '=') {
+					continue;
+				}
+				i++;
+				while (i < length && isSpace(html.charAt(i))) {
+					i++;
+				}
+				if (i >= length) {
+					break;
+				}
+				int valueStart;
+				int valueEnd;
+				char quote = html.charAt(i);
+				if (quote == '"' || quote == '\'') {
+					valueStart = i + 1;
+					valueEnd = html.indexOf(quote, valueStart);
+					if (valueEnd < 0) {
+						// the document ends inside the value
+						valueEnd = length;
+					}
+					i = Math.min(valueEnd + 1, length);
+				} else {
+					valueStart = i;
+					while (i < length && !isSpace(html.charAt(i)) && html.charAt(i) != '>') {
+						i++;
+					}
+					valueEnd = i;
+				}
+				if (href == null && (link || baseTag) && is(html, attrStart, attrEnd, "href")) {
+					href = html.substring(valueStart, valueEnd);
+				}
+			}
+			// the tag may run to the end of a truncated document
+			boolean closed = i < length;
+			i = Math.min(i + 1, length);
+
+			if (href != null && baseTag) {
+				baseSeen = true;
+				URL resolved = resolve(baseUrl, href);
+				if (resolved != null) {
+					baseUrl = resolved;
+				}
+			} else if (href != null) {
+				URL resolved = resolve(baseUrl, href);
+				if (resolved != null) {
+					links.add(resolved.toString());
+				}
+			} else if (!link && closed && html.charAt(i - 2) != '/') {
+				i = skipRawElement(html, nameStart, nameEnd, i);
+			}
+		}
+		return links;
+	}
+
+	/**
+	 * Resolves an href against the base url, dropping its fragment.
+	 *
+	 * @param base the base url
+	 * @param href the raw attribute value
+	 * @return the resolved url, or {@code null} if it is empty or not valid
+	 */
+	private static URL resolve(URL base, String href) {
+		if (href.indexOf('&') >= 0) {
+			href = StringEscapeUtils.unescapeHtml4(href);
+		}
+		href = href.strip();
+		int hash = href.indexOf('#');
+		if (hash >= 0) {
+			href = href.substring(0, hash);
+		}
+		if (href.isEmpty()) {
+			return null;
+		}
+		try {
+			return resolveUrl(base, href);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Converts an absolute url to a {@link URL}, without the deprecated
+	 * {@code URL(String)} constructor.
+	 *
+	 * @param url the absolute url
+	 * @return the url
+	 * @throws MalformedURLException if the url is not a valid absolute url
+	 */
+	static URL toUrl(String url) throws MalformedURLException {
+		try {
+			return URI.create(url).toURL();
+		} catch (IllegalArgumentException e) {
+			throw new MalformedURLException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Resolves a possibly relative url against a base url.
+	 *
+	 * @param base the base url
+	 * @param spec the url to resolve
+	 * @return the resolved url
+	 * @throws MalformedURLException if the url cannot be resolved
+	 */
+	// URI.resolve follows RFC 2396, which resolves a query-only reference or a
+	// base with an empty path differently from browsers, so the deprecated URL
+	// context constructor is kept for resolving until there is a replacement
+	@SuppressWarnings("deprecation")
+	static URL resolveUrl(URL base, String spec) throws MalformedURLException {
+		return new URL(base, spec);
+	}
+
+	/**
+	 * Skips a comment, doctype, processing instruction, or closing tag.
+	 *
+	 * @param html the html
+	 * @param start the index of the opening {@code <}
+	 * @return the index just past the markup
+	 */
+	private static int skipMarkup(String html, int start) {
+		int end;
+		if (html.startsWith("<!--", start)) {
+			end = html.indexOf("-->", start + 4);
+			return end < 0 ? html.length() : end + 3;
+		}
+		end = html.indexOf('>', start + 1);
+		return end < 0 ? html.length() : end + 1;
+	}
+
+	/**
+	 * Skips to the end of the element if its contents should not be scanned.
+	 *
+	 * @param html the html
+	 * @param nameStart start of the tag name
+	 * @param nameEnd end of the tag name
+	 * @param after the index just past the opening tag
+	 * @return the index just past the closing tag, or {@code after} if the
+	 *   contents should be scanned
+	 */
+	private static int skipRawElement(String html, int nameStart, int nameEnd, int after) {
+		for (String name : RAW_ELEMENTS) {
+			if (is(html, nameStart, nameEnd, name)) {
+				int close = indexOfClosingTag(html, name, after);
+				if (close < 0) {
+					return html.length();
+				}
+				int end = html.indexOf('>', close);
+				return end < 0 ? html.length() : end + 1;
+			}
+		}
+		return after;
+	}
+
+	/**
+	 * Finds the closing tag of an element, ignoring case.
+	 *
+	 * @param html the html
+	 * @param name the element name, in lower case
+	 * @param from where to start looking
+	 * @return the index of the closing tag, or -1 if there is none
+	 */
+	private static int indexOfClosingTag(String html, String name, int from) {
+		int i = from;
+		while ((i = html.indexOf("</", i)) >= 0) {
+			int nameEnd = i + 2 + name.length();
+			if (html.regionMatches(true, i + 2, name, 0, name.length())
+					&& (nameEnd >= html.length() || !isLetter(html.charAt(nameEnd)))) {
+				return i;
+			}
+			i += 2;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns {@code true} if the region of the html is the name, ignoring case.
+	 *
+	 * @param html the html
+	 * @param start start of the region
+	 * @param end end of the region
+	 * @param name the name, in lower case
+	 * @return {@code true} if the region is the name
+	 */
+	private static boolean is(String html, int start, int end, String name) {
+		return end - start == name.length() && html.regionMatches(true, start, name, 0, name.length());
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+	}
+}
@@ -0,0 +1,24 @@
+package com.crawler;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Thrown when a host answers a request with a 429 or 503, so the crawl can put
+ * the url back and try again once the host's pause is over.
+ *
+ * @see HostScheduler#backoff(URL, String)
+ */
+public class ThrottledException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Initializes the exception.
+	 *
+	 * @param url the url that was throttled
+	 * @param statusCode the status code of the response
+	 */
+	public ThrottledException(URL url, int statusCode) {
+		super("Throttled with " + statusCode + ": " + url);
+	}
+}
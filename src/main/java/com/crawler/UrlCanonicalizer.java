@@ -0,0 +1,186 @@
+package com.crawler;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites urls into a canonical form so that different spellings of the same
+ * page are only crawled once. The canonical form:
+ *
+ * <ul>
+ * <li>lower cases the scheme and host, and drops the default port</li>
+ * <li>drops the fragment and any {@code ;jsessionid=} path parameter</li>
+ * <li>resolves {@code .} and {@code ..} segments, drops a trailing
+ * {@code index.html} (or similar) page, and drops the trailing slash of any
+ * path other than {@code /}</li>
+ * <li>drops tracking and session query parameters, and sorts the rest by
+ * name</li>
+ * </ul>
+ *
+ * Which query parameters are dropped, and whether the rest are sorted, is
+ * configurable per sweep. Urls that cannot be parsed are only stripped of their
+ * fragment.
+ *
+ * <p>
+ * The canonical form is a key for detecting duplicates, not a url to fetch or
+ * to resolve links against: dropping a trailing slash or default page changes
+ * what relative links on the page point to.
+ */
+public class UrlCanonicalizer {
+	/** Constant for the query parameters dropped by default; a trailing * matches any suffix */
+	public static final List<String> DROP_PARAMS_DEFAULT = List.of(
+			"utm_*", "gclid", "fbclid", "msclkid", "sessionid", "jsessionid", "phpsessid", "sid");
+
+	/** Matches the default pages of a directory */
+	private static final Pattern INDEX_PAGE = Pattern.compile("(?i)^index\\.(html?|php|aspx?|jsp)$");
+	/** Matches a session id path parameter */
+	private static final Pattern SESSION_PATH_PARAM = Pattern.compile("(?i);jsessionid=[^/?#]*");
+
+	/** Lower case names of the query parameters to drop */
+	private final List<String> dropParams;
+	/** Whether to sort the query parameters */
+	private final boolean sortParams;
+
+	/**
+	 * Initializes a canonicalizer with the default rules.
+	 *
+	 * @see #DROP_PARAMS_DEFAULT
+	 */
+	public UrlCanonicalizer() {
+		this(DROP_PARAMS_DEFAULT, true);
+	}
+
+	/**
+	 * Initializes a canonicalizer.
+	 *
+	 * @param dropParams names of the query parameters to drop (case-insensitive);
+	 *   a name ending in * drops every parameter starting with the rest of it
+	 * @param sortParams whether to sort the remaining query parameters by name
+	 */
+	public UrlCanonicalizer(List<String> dropParams, boolean sortParams) {
+		this.dropParams = new ArrayList<>();
+		for (String param : dropParams) {
+			if (!param.isBlank()) {
+				this.dropParams.add(param.strip().toLowerCase(Locale.ROOT));
+			}
+		}
+		this.sortParams = sortParams;
+	}
+
+	/**
+	 * Returns the canonical form of the url.
+	 *
+	 * @param url the url to canonicalize
+	 * @return the canonical url
+	 */
+	public String canonicalize(String url) {
+		int hash = url.indexOf('#');
+		if (hash >= 0) {
+			url = url.substring(0, hash);
+		}
+
+		URI uri;
+		try {
+			uri = new URI(SESSION_PATH_PARAM.matcher(url).replaceAll("")).normalize();
+		} catch (Exception e) {
+			return url;
+		}
+		if (uri.getRawAuthority() == null || uri.getScheme() == null) {
+			return url;
+		}
+
+		String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+		StringBuilder canonical = new StringBuilder(url.length());
+		canonical.append(scheme).append("://");
+		if (uri.getRawUserInfo() != null) {
+			canonical.append(uri.getRawUserInfo()).append('@');
+		}
+		canonical.append(uri.getHost() != null ? uri.getHost().toLowerCase(Locale.ROOT) : uri.getRawAuthority().toLowerCase(Locale.ROOT));
+		int port = uri.getPort();
+		if (port != -1 && !(port == 80 && scheme.equals("http")) && !(port == 443 && scheme.equals("https"))) {
+			canonical.append(':').append(port);
+		}
+		canonical.append(this.canonicalPath(uri.getRawPath()));
+
+		String query = this.canonicalQuery(uri.getRawQuery());
+		if (!query.isEmpty()) {
+			canonical.append('?').append(query);
+		}
+		return canonical.toString();
+	}
+
+	/**
+	 * Returns the path without a default page or trailing slash.
+	 *
+	 * @param path the raw path
+	 * @return the canonical path
+	 */
+	private String canonicalPath(String path) {
+		if (path == null || path.isEmpty()) {
+			return "/";
+		}
+		int slash = path.lastIndexOf('/');
+		if (INDEX_PAGE.matcher(path.substring(slash + 1)).matches()) {
+			path = path.substring(0, slash + 1);
+		}
+		while (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	/**
+	 * Returns the query without dropped or empty parameters, sorted by name if
+	 * configured.
+	 *
+	 * @param query the raw query, or {@code null}
+	 * @return the canonical query, or an empty string if nothing is left
+	 */
+	private String canonicalQuery(String query) {
+		if (query == null || query.isEmpty()) {
+			return "";
+		}
+		List<String> params = new ArrayList<>();
+		for (String param : query.split("&")) {
+			if (!param.isEmpty() && !this.isDropped(name(param))) {
+				params.add(param);
+			}
+		}
+		if (this.sortParams) {
+			// stable, so repeated parameters keep their order
+			params.sort(Comparator.comparing(UrlCanonicalizer::name));
+		}
+		return String.join("&", params);
+	}
+
+	/**
+	 * Returns {@code true} if the query parameter should be dropped.
+	 *
+	 * @param name the name of the parameter
+	 * @return {@code true} if the parameter should be dropped
+	 */
+	private boolean isDropped(String name) {
+		name = name.toLowerCase(Locale.ROOT);
+		for (String drop : this.dropParams) {
+			if (drop.endsWith("*") ? name.startsWith(drop.substring(0, drop.length() - 1)) : name.equals(drop)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the name of a query parameter.
+	 *
+	 * @param param the parameter, as "name=value" or just "name"
+	 * @return the name
+	 */
+	private static String name(String param) {
+		int equals = param.indexOf('=');
+		return equals >= 0 ? param.substring(0, equals) : param;
+	}
+}
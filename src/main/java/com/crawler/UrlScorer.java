@@ -0,0 +1,141 @@
+package com.crawler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Picks the {@link CrawlFrontier} priority level of a url, so a crawl spends its
+ * budget on the pages most likely to be results or to link to results. A url
+ * matching the route pattern always gets the best level. Every other url is
+ * scored by its expected yield, the share of links on a page that match the
+ * route pattern, discounted by its depth from the seed.
+ *
+ * <p>
+ * The expected yield comes from the page's path template, the url with its
+ * query dropped and every run of digits replaced by {@code #}, so that
+ * {@code /category/12?page=3} and {@code /category/40} share the template
+ * {@code /category/#}. The yield observed on fetched pages of that template is
+ * blended with the yield of the page the url was found on, which stands in for
+ * templates with few fetched pages.
+ */
+public class UrlScorer {
+	/** Constant for default number of priority levels */
+	public static final int LEVELS_DEFAULT = 8;
+
+	/** Weight of the parent yield, counted as this many links of the template */
+	private static final int PARENT_WEIGHT = 10;
+	/** How much each level of depth discounts the score */
+	private static final double DEPTH_PENALTY = 0.1;
+	/** Matches the runs of digits replaced in a path template */
+	private static final Pattern DIGITS = Pattern.compile("\\d+");
+
+	/** The pattern urls must match to be a result */
+	private final Pattern routePattern;
+	/** Number of priority levels */
+	private final int levels;
+	/** Links seen and matched on the fetched pages of each path template */
+	private final Map<String, Yield> templates;
+
+	/**
+	 * Links seen and matched on the pages of a path template.
+	 */
+	private static class Yield {
+		private final LongAdder links = new LongAdder();
+		private final LongAdder matched = new LongAdder();
+	}
+
+	/**
+	 * Initializes a scorer with no observed pages.
+	 *
+	 * @param routeRegex the regex urls must match to be a result
+	 * @param levels number of priority levels; at least 2
+	 */
+	public UrlScorer(String routeRegex, int levels) {
+		this.routePattern = Pattern.compile(routeRegex);
+		this.levels = Math.max(2, levels);
+		this.templates = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Returns the number of priority levels.
+	 *
+	 * @return the number of levels
+	 */
+	public int getLevels() {
+		return this.levels;
+	}
+
+	/**
+	 * Returns {@code true} if the url matches the route pattern.
+	 *
+	 * @param url the url
+	 * @return {@code true} if the url is a result
+	 */
+	public boolean matches(String url) {
+		return this.routePattern.matcher(url).find();
+	}
+
+	/**
+	 * Records the links found on a fetched page.
+	 *
+	 * @param url the url of the page
+	 * @param links number of links on the page
+	 * @param matched number of those links matching the route pattern
+	 */
+	public void observe(String url, int links, int matched) {
+		Yield yield = this.templates.computeIfAbsent(template(url), t -> new Yield());
+		yield.links.add(links);
+		yield.matched.add(matched);
+	}
+
+	/**
+	 * Returns the priority level of a url, 0 being the best. Matching urls get
+	 * level 0; for the rest, every halving of the score drops one level.
+	 *
+	 * @param url the url to score
+	 * @param depth number of links followed from the seed to reach the url
+	 * @param parentYield share of links matching the route pattern on the page
+	 *   the url was found on
+	 * @return the level
+	 */
+	public int level(String url, int depth, double parentYield) {
+		if (this.matches(url)) {
+			return 0;
+		}
+		double links = PARENT_WEIGHT;
+		double matched = PARENT_WEIGHT * parentYield;
+		Yield yield = this.templates.get(template(url));
+		if (yield != null) {
+			links += yield.links.sum();
+			matched += yield.matched.sum();
+		}
+		double score = matched / links / (1 + DEPTH_PENALTY * depth);
+		if (score <= 0) {
+			return this.levels - 1;
+		}
+		int level = 1 + (int) Math.floor(-Math.log(score) / Math.log(2));
+		return Math.max(1, Math.min(level, this.levels - 1));
+	}
+
+	/**
+	 * Returns the path template of a url.
+	 *
+	 * @param url the url
+	 * @return the url without its query or fragment and with every run of
+	 *   digits replaced by {@code #}
+	 */
+	public static String template(String url) {
+		int end = url.length();
+		int query = url.indexOf('?');
+		if (query >= 0) {
+			end = query;
+		}
+		int hash = url.indexOf('#');
+		if (hash >= 0 && hash < end) {
+			end = hash;
+		}
+		return DIGITS.matcher(url.substring(0, end)).replaceAll("#");
+	}
+}
@@ -0,0 +1,302 @@
+package com.crawler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * An on-disk cache of HTTP validators used to turn refetches of unchanged pages
+ * into cheap conditional requests. For every cached page, the "ETag" and
+ * "Last-Modified" headers are kept in an index along with a hash of the body,
+ * and the body itself is kept gzip compressed. Requests for a cached page are
+ * sent with "If-None-Match"/"If-Modified-Since", and a 304 response is answered
+ * from the cached body.
+ *
+ * <p>
+ * The index is loaded when the cache is created and written by {@link #save()},
+ * so it survives between sweeps run against the same directory. Bodies and the
+ * index are written to a temporary file first and then moved into place, so a
+ * crash never leaves a partly written file behind.
+ */
+public class ValidatorCache {
+	/** Constant for the etag header */
+	public static final String ETAG = "ETag";
+	/** Constant for the last-modified header */
+	public static final String LAST_MODIFIED = "Last-Modified";
+	/** Constant for the if-none-match header */
+	public static final String IF_NONE_MATCH = "If-None-Match";
+	/** Constant for the if-modified-since header */
+	public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+	/** Constant for 304 Not Modified status code */
+	public static final int NOT_MODIFIED = 304;
+
+	/** Name of the index file in the cache directory */
+	private static final String INDEX = "index.json";
+	/** Name of the directory holding the cached bodies */
+	private static final String BODIES = "bodies";
+	/** Suffix of the cached bodies */
+	private static final String BODY_SUFFIX = ".gz";
+
+	/** The directory the cache lives in */
+	private final Path dir;
+	/** Validators of the cached pages, keyed by url */
+	private final Map<String, Entry> entries;
+
+	/** Pages answered from the cache after a 304 */
+	private final LongAdder hits;
+	/** Pages downloaded in full */
+	private final LongAdder misses;
+	/** Pages downloaded in full whose body had not changed */
+	private final LongAdder unchanged;
+
+	/**
+	 * Validators and body hash stored for a cached page.
+	 */
+	private static class Entry {
+		private String etag;
+		private String lastModified;
+		private String bodyHash;
+	}
+
+	/**
+	 * Opens the cache in the specified directory, loading the index left by a
+	 * previous sweep if there is one.
+	 *
+	 * @param dir the directory the cache lives in
+	 * @throws IOException if unable to create the directory or read the index
+	 */
+	public ValidatorCache(Path dir) throws IOException {
+		this.dir = dir;
+		this.entries = new ConcurrentHashMap<>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.unchanged = new LongAdder();
+
+		Files.createDirectories(dir.resolve(BODIES));
+		Path index = dir.resolve(INDEX);
+		if (Files.exists(index)) {
+			Type type = new TypeToken<Map<String, Entry>>(){}.getType();
+			try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+				Map<String, Entry> loaded = new Gson().fromJson(reader, type);
+				if (loaded != null) {
+					this.entries.putAll(loaded);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the conditional request headers for the url if a body is cached for
+	 * it.
+	 *
+	 * @param url the url being requested
+	 * @param request the request to add the headers to
+	 * @return the request
+	 */
+	public HttpRequest.Builder addValidators(String url, HttpRequest.Builder request) {
+		Entry entry = this.entries.get(url);
+		if (entry != null && Files.exists(this.bodyPath(url))) {
+			if (entry.etag != null) {
+				request.header(IF_NONE_MATCH, entry.etag);
+			}
+			if (entry.lastModified != null) {
+				request.header(IF_MODIFIED_SINCE, entry.lastModified);
+			}
+		}
+		return request;
+	}
+
+	/**
+	 * Returns the cached body for a url the server answered with a 304. If the
+	 * body cannot be read, the url is dropped from the cache, so the page can be
+	 * refetched with an unconditional request.
+	 *
+	 * @param url the url that was not modified
+	 * @return the cached body, or {@code null} if it could not be read
+	 */
+	public String notModified(String url) {
+		try (InputStream in = new GZIPInputStream(Files.newInputStream(this.bodyPath(url)))) {
+			String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+			this.hits.increment();
+			return body;
+		} catch (IOException e) {
+			this.remove(url);
+			return null;
+		}
+	}
+
+	/**
+	 * Records a page downloaded in full. The page is cached if the response
+	 * carries an "ETag" or "Last-Modified" header to revalidate it with.
+	 *
+	 * @param url the url that was downloaded
+	 * @param headers the response headers
+	 * @param body the downloaded body
+	 */
+	public void store(String url, HttpHeaders headers, String body) {
+		this.misses.increment();
+
+		Entry entry = new Entry();
+		entry.etag = headers.firstValue(ETAG).orElse(null);
+		entry.lastModified = headers.firstValue(LAST_MODIFIED).orElse(null);
+		entry.bodyHash = hash(body);
+
+		Entry previous = this.entries.get(url);
+		if (previous != null && entry.bodyHash.equals(previous.bodyHash)) {
+			this.unchanged.increment();
+		}
+
+		if (entry.etag == null && entry.lastModified == null) {
+			this.remove(url);
+			return;
+		}
+
+		Path path = this.bodyPath(url);
+		Path temp = null;
+		try {
+			temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+			try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp))) {
+				out.write(body.getBytes(StandardCharsets.UTF_8));
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.entries.put(url, entry);
+		} catch (IOException e) {
+			deleteQuietly(temp);
+			this.remove(url);
+		}
+	}
+
+	/**
+	 * Writes the index to the cache directory, then deletes the bodies the
+	 * index no longer refers to. Should only be called once no more pages are
+	 * being fetched.
+	 *
+	 * @throws IOException if unable to write the index
+	 */
+	public void save() throws IOException {
+		Path index = this.dir.resolve(INDEX);
+		Path temp = Files.createTempFile(this.dir, INDEX, ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			new Gson().toJson(this.entries, writer);
+		} catch (IOException e) {
+			deleteQuietly(temp);
+			throw e;
+		}
+		Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		Set<Path> referenced = new HashSet<>();
+		for (String url : this.entries.keySet()) {
+			referenced.add(this.bodyPath(url).getFileName());
+		}
+		try (DirectoryStream<Path> bodies = Files.newDirectoryStream(this.dir.resolve(BODIES))) {
+			for (Path body : bodies) {
+				if (!referenced.contains(body.getFileName())) {
+					deleteQuietly(body);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the fraction of fetched pages answered from the cache.
+	 *
+	 * @return the hit rate, or 0 if nothing was fetched
+	 */
+	public double getHitRate() {
+		long hits = this.hits.sum();
+		long total = hits + this.misses.sum();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * Returns the cache statistics as "name=value" lines for the sweep run
+	 * output.
+	 *
+	 * @return the cache statistics
+	 */
+	public List<String> getStats() {
+		List<String> stats = new ArrayList<>();
+		stats.add("cacheHits=" + this.hits.sum());
+		stats.add("cacheMisses=" + this.misses.sum());
+		stats.add("cacheUnchangedMisses=" + this.unchanged.sum());
+		stats.add(String.format("cacheHitRate=%.4f", this.getHitRate()));
+		return stats;
+	}
+
+	/**
+	 * Drops the url from the cache and deletes its body.
+	 *
+	 * @param url the url to drop
+	 */
+	private void remove(String url) {
+		this.entries.remove(url);
+		deleteQuietly(this.bodyPath(url));
+	}
+
+	/**
+	 * Deletes the file if it exists, ignoring any failure. A body left behind
+	 * is deleted by the next {@link #save()}.
+	 *
+	 * @param path the file to delete, or {@code null}
+	 */
+	private static void deleteQuietly(Path path) {
+		if (path == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			return;
+		}
+	}
+
+	/**
+	 * Returns the path the body of the url is cached at.
+	 *
+	 * @param url the url
+	 * @return the path of the cached body
+	 */
+	private Path bodyPath(String url) {
+		return this.dir.resolve(BODIES).resolve(hash(url) + BODY_SUFFIX);
+	}
+
+	/**
+	 * Returns the hex SHA-256 hash of the text.
+	 *
+	 * @param text the text to hash
+	 * @return the hash
+	 */
+	private static String hash(String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package com.crawler;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The set of urls a crawl has already claimed. Implementations must be safe to
+ * use from many threads at once.
+ *
+ * @see ExactVisitedSet
+ * @see BloomVisitedSet
+ */
+public interface VisitedSet {
+	/**
+	 * Adds the url to the set.
+	 *
+	 * @param url the url to add
+	 * @return {@code true} if the url was not already in the set
+	 */
+	public boolean add(String url);
+
+	/**
+	 * Returns statistics about the set as "name=value" lines for the sweep run
+	 * output.
+	 *
+	 * @return the statistics
+	 */
+	public List<String> getStats();
+
+	/**
+	 * Writes the set to a file so a crawl can be resumed.
+	 *
+	 * @param file the file to write
+	 * @throws IOException if unable to write the file
+	 *
+	 * @see CrawlCheckpoint
+	 */
+	public void save(Path file) throws IOException;
+
+	/**
+	 * Adds everything saved to a file by {@link #save(Path)} to the set.
+	 *
+	 * @param file the file to read
+	 * @throws IOException if unable to read the file
+	 */
+	public void load(Path file) throws IOException;
+}
@@ -1,17 +1,28 @@
 package com.crawler;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.regex.Pattern;
 
-import com.threading.WorkQueue;
+import com.threading.ReadWriteLock;
+import com.threading.TaskQueue;
 
 /**
  * Web Crawler to download and build an inverted index of the text in each web page it visits
@@ -23,20 +34,119 @@ public class WebCrawler {
 	public static final int MAX_URLS_DEFAULT = 1;
 	/** Constant for default number of redirects to follow for a given URL */
 	public static final int REDIRECTS_LIMIT = 3;
+	/** Constant for default number of requests in flight during an asynchronous crawl */
+	public static final int MAX_IN_FLIGHT_DEFAULT = 256;
+	/** Constant for number of urls started per worker thread, so workers never sit idle between tasks */
+	public static final int TASKS_PER_WORKER = 2;
+	/** Constant for number of times a throttled url is put back in the frontier */
+	public static final int RETRIES_LIMIT = 3;
+	
+	/** Scheduler that paces requests per host, or {@code null} to not pace them */
+	private final HostScheduler scheduler;
+	/** Rewrites urls before they are claimed, so duplicates are crawled once */
+	private final UrlCanonicalizer canonicalizer;
+	/** Number of priority levels of the frontier, 1 to crawl in discovery order */
+	private final int priorityLevels;
+	/** Given each result and the html fetched for it, or {@code null} */
+	private final BiConsumer<CrawlResult, String> resultPages;
+	
+	/**
+	 * Initializes a crawler that does not pace its requests and uses the default
+	 * canonicalization rules
+	 */
+	public WebCrawler() {
+		this(null);
+	}
+	
+	/**
+	 * Initializes a crawler that releases each url to the scheduler so requests
+	 * are paced per host, and uses the default canonicalization rules
+	 * @param scheduler the scheduler, or {@code null} to not pace requests
+	 */
+	public WebCrawler(HostScheduler scheduler) {
+		this(scheduler, new UrlCanonicalizer());
+	}
+	
+	/**
+	 * Initializes a crawler
+	 * @param scheduler the scheduler, or {@code null} to not pace requests
+	 * @param canonicalizer rewrites urls before they are claimed
+	 */
+	public WebCrawler(HostScheduler scheduler, UrlCanonicalizer canonicalizer) {
+		this(scheduler, canonicalizer, 1);
+	}
+	
+	/**
+	 * Initializes a crawler that, given more than 1 priority level, crawls the
+	 * urls most likely to lead to results first and charges the maxUrls budget
+	 * when a url is started instead of when it is found
+	 * @param scheduler the scheduler, or {@code null} to not pace requests
+	 * @param canonicalizer rewrites urls before they are claimed
+	 * @param priorityLevels number of priority levels, 1 to crawl in discovery
+	 *   order
+	 * @see UrlScorer
+	 */
+	public WebCrawler(HostScheduler scheduler, UrlCanonicalizer canonicalizer, int priorityLevels) {
+		this(scheduler, canonicalizer, priorityLevels, null);
+	}
+	
+	/**
+	 * Initializes a crawler that hands the html of every result to the given
+	 * consumer as soon as it is fetched, so the page can be processed without
+	 * downloading it again. The consumer runs on the thread that fetched the page
+	 * and is not called for results whose fetch failed or was cancelled, nor for
+	 * results restored from a checkpoint.
+	 * @param scheduler the scheduler, or {@code null} to not pace requests
+	 * @param canonicalizer rewrites urls before they are claimed
+	 * @param priorityLevels number of priority levels, 1 to crawl in discovery
+	 *   order
+	 * @param resultPages given each result and its html, or {@code null}
+	 */
+	public WebCrawler(HostScheduler scheduler, UrlCanonicalizer canonicalizer, int priorityLevels, BiConsumer<CrawlResult, String> resultPages) {
+		this.scheduler = scheduler;
+		this.canonicalizer = canonicalizer;
+		this.priorityLevels = priorityLevels;
+		this.resultPages = resultPages;
+	}
 	
 	public static class CrawlResult {
 		private final String url;
+		/** The url as it was found, or {@code null} if it is the canonical url */
+		private final String location;
 		private final String timestamp;
 		
 		public CrawlResult(String url, String timestamp) {
+			this(url, null, timestamp);
+		}
+		
+		/**
+		 * Constructor initializes members
+		 * @param url the canonical url
+		 * @param location the url as it was found and fetched
+		 * @param timestamp when the url was recorded
+		 */
+		public CrawlResult(String url, String location, String timestamp) {
 			this.url = url;
+			this.location = location == null || location.equals(url) ? null : location;
 			this.timestamp = timestamp;
 		}
 		
+		/**
+		 * Returns the canonical url, the key the crawl dedups on
+		 * @return the canonical url
+		 */
 		public String getUrl() {
 			return this.url;
 		}
 		
+		/**
+		 * Returns the url as it was found, which is the one to fetch
+		 * @return the url as it was found
+		 */
+		public String getLocation() {
+			return this.location != null ? this.location : this.url;
+		}
+		
 		public String getTimestamp() {
 			return this.timestamp;
 		}
@@ -48,148 +158,750 @@ public class WebCrawler {
 	}
 	
 	/**
-	 * Task to be run by WorkQueue for multi-threading
-	 * @author domin
+	 * State shared by every task of a single crawl. A url is canonicalized and
+	 * claimed exactly once, when it is discovered, so duplicates and urls over
+	 * the budget never become tasks. Claimed urls wait in the frontier until
+	 * one of the {@link #maxInFlight()} slots frees up.
+	 *
+	 * <p>
+	 * The canonical url is the key of the visited check, the scorer and the
+	 * results, and is what the route regex is matched against. A url is fetched
+	 * as it was found, which a result keeps as its location, and the links on
+	 * a page are resolved against the url the page was fetched from after
+	 * redirects.
 	 *
+	 * <p>
+	 * With a scorer, urls are started best level first, and the budget is
+	 * charged when a url is started, so it is only spent on the urls the scorer
+	 * likes best.
+	 *
+	 * <p>
+	 * Links are claimed and added to the frontier while holding the read lock,
+	 * and a checkpoint is taken while holding the write lock, so a checkpoint
+	 * never sees a url that is visited but in neither the frontier nor in
+	 * flight.
+	 *
+	 * <p>
+	 * A url whose host answered with a 429 or 503 is put back at the front of
+	 * the frontier when its slot is released, up to {@link #RETRIES_LIMIT}
+	 * times. It is started again through the scheduler, which holds it until
+	 * the host's pause is over.
+	 *
+	 * <p>
+	 * Only one thread dispatches at a time. A slot freed while another thread
+	 * is dispatching is picked up by that thread, so a task that runs or
+	 * completes in the dispatching thread never dispatches recursively.
 	 */
-	private class Task implements Runnable {
-		/** URL to visit */
-		private final String seed;
+	private abstract class Crawl {
+		/** The base every crawled url must start with */
 		private final String base;
 		/** Number of max URLs to visit */
 		private final int maxUrls;
-		/** Set to keep track of URLs already visited */
-		private final Set<String> visited;
-		private final String routeRegex;
+		/** Set to keep track of URLs already claimed */
+		private final VisitedSet visited;
+		/** Number of urls claimed, never more than maxUrls */
+		private final AtomicInteger reserved;
+		/** The pattern urls must match to be a result */
+		private final Pattern routePattern;
 		private final List<CrawlResult> crawlResults;
-		/** The WorkQueue to add more tasks recursively */
-		private final WorkQueue queue;
+		/** Picks the priority level of claimed urls, or {@code null} to crawl in discovery order */
+		private final UrlScorer scorer;
+		/** Claimed urls waiting to be started, guarded by this */
+		private final CrawlFrontier frontier;
+		/** Urls started but not finished and their fetch once started, guarded by this */
+		private final Map<CrawlFrontier.Entry, CompletableFuture<HtmlFetcher.Page>> inFlight;
+		/** Max number of urls started but not finished */
+		private final int maxInFlight;
+		/** Where progress is saved, or {@code null} to not save it */
+		private final CrawlCheckpoint checkpoint;
+		/** Shared to claim links, exclusive to take a checkpoint */
+		private final ReadWriteLock lock;
+		/** Completed with the results once nothing is queued or in flight */
+		private final CompletableFuture<List<CrawlResult>> done;
+		/** Number of results after which the crawl stops */
+		private final int maxResults;
+		/** How long the crawl may run before it stops, or {@code null} for no limit */
+		private final Duration maxDuration;
+		/** Set once the crawl stops early; no url is started after that */
+		private volatile boolean stopped;
+		/** Number of times each throttled url was put back, guarded by this */
+		private final Map<String, Integer> retries;
+		/** Set while a thread is starting urls, guarded by this */
+		private boolean dispatching;
 		
-		/**
-		 * Constructor initializes members
-		 * @param seed the url to visit
-		 * @param maxUrls max urls to visit
-		 * @param visited urls already visited 
-		 * @param index the index to add to 
-		 * @param queue the WorkQueue to add more tasks to recursively
-		 */
-		private Task(
-			String seed, 
-			String base,
-			int maxUrls, 
-			Set<String> visited, 
-			String routeRegex,
-			List<CrawlResult> crawlResults, 
-			WorkQueue queue
-		) {
-			this.seed = seed;
+		private Crawl(String base, int maxUrls, String routeRegex, VisitedSet visited, int maxInFlight, CrawlCheckpoint checkpoint, int maxResults, Duration maxDuration) {
 			this.base = base;
 			this.maxUrls = maxUrls;
 			this.visited = visited;
-			this.routeRegex = routeRegex;
-			this.crawlResults = crawlResults;
-			this.queue = queue;
+			this.reserved = new AtomicInteger();
+			this.routePattern = Pattern.compile(routeRegex);
+			this.crawlResults = Collections.synchronizedList(new ArrayList<CrawlResult>());
+			this.scorer = priorityLevels > 1 ? new UrlScorer(routeRegex, priorityLevels) : null;
+			int levels = this.scorer != null ? this.scorer.getLevels() : 1;
+			this.frontier = new CrawlFrontier(checkpoint != null ? checkpoint.getFrontierDir() : null, CrawlFrontier.HEAD_DEFAULT, levels);
+			this.inFlight = new LinkedHashMap<>();
+			this.maxInFlight = maxInFlight;
+			this.checkpoint = checkpoint;
+			this.lock = new ReadWriteLock(true);
+			this.done = new CompletableFuture<>();
+			this.maxResults = maxResults < 1 ? Integer.MAX_VALUE : maxResults;
+			this.maxDuration = maxDuration;
+			this.stopped = false;
+			this.retries = new HashMap<>();
+			this.dispatching = false;
 		}
 		
-		@Override
-		public void run() {
+		/**
+		 * Starts the crawl from the seed, or from the saved checkpoint if there is
+		 * one
+		 * @param seed initial url to start with
+		 * @throws IOException if unable to read the checkpoint
+		 */
+		private void begin(String seed) throws IOException {
+			if (this.checkpoint != null && this.checkpoint.exists()) {
+				CrawlCheckpoint.State state = this.checkpoint.load(this.visited);
+				this.reserved.set(state.reserved);
+				this.crawlResults.addAll(state.results);
+				synchronized (this) {
+					this.frontier.restore(state.heads, state.segments);
+				}
+			} else {
+				this.offer(List.of(seed), null);
+			}
+			if (this.maxDuration != null) {
+				Executor timer = CompletableFuture.delayedExecutor(this.maxDuration.toNanos(), TimeUnit.NANOSECONDS);
+				timer.execute(() -> this.stop("maxDuration of " + this.maxDuration.toSeconds() + "s reached"));
+			}
+			this.dispatch();
+		}
+		
+		/**
+		 * Claims the canonical form of the url for crawling if it is on the base,
+		 * not yet claimed, and there is budget left. Without a scorer the budget
+		 * is reserved here, atomically, so no more than maxUrls urls are ever
+		 * claimed.
+		 * @param url the url to claim
+		 * @return the canonical url if it should be crawled, or {@code null}
+		 */
+		private String claim(String url) {
+			if (this.reserved.get() >= this.maxUrls) {
+				return null;
+			}
+			url = canonicalizer.canonicalize(url);
+			if (!url.startsWith(this.base) || !this.visited.add(url)) {
+				return null;
+			}
+			if (this.scorer != null) {
+				return url;
+			}
+			return this.reserve() ? url : null;
+		}
+		
+		/**
+		 * Reserves one url of the budget
+		 * @return {@code true} if there was budget left
+		 */
+		private boolean reserve() {
+			return this.reserved.getAndUpdate(n -> n < this.maxUrls ? n + 1 : n) < this.maxUrls;
+		}
+		
+		/**
+		 * Claims the links and adds the claimed ones to the frontier, at the level
+		 * picked by the scorer if there is one
+		 * @param links the links found on a page
+		 * @param parent the page the links were found on, or {@code null} for the
+		 *   seed
+		 */
+		private void offer(List<String> links, CrawlFrontier.Entry parent) {
+			if (this.stopped) {
+				return;
+			}
+			int depth = parent != null ? parent.getDepth() + 1 : 0;
+			double parentYield = 0;
+			if (this.scorer != null && parent != null) {
+				int matched = 0;
+				for (String link : links) {
+					if (this.scorer.matches(link)) {
+						matched++;
+					}
+				}
+				this.scorer.observe(parent.getUrl(), links.size(), matched);
+				parentYield = links.isEmpty() ? 0 : (double) matched / links.size();
+			}
+
+			// only checkpoints need the lock, so skip it when there are none
+			boolean locked = this.checkpoint != null;
+			if (locked) {
+				this.lock.read().lock();
+			}
+			try {
+				List<CrawlFrontier.Entry> claimed = new ArrayList<>();
+				for (String link : links) {
+					String url = this.claim(link);
+					if (url != null) {
+						claimed.add(new CrawlFrontier.Entry(url, link, depth));
+					}
+				}
+				synchronized (this) {
+					for (CrawlFrontier.Entry entry : claimed) {
+						int level = this.scorer != null ? this.scorer.level(entry.getUrl(), depth, parentYield) : 0;
+						this.frontier.add(entry, level);
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("Exception occurred adding to the crawl frontier: " + e.getMessage());
+			} finally {
+				if (locked) {
+					this.lock.read().unlock();
+				}
+			}
+		}
+		
+		/**
+		 * Adds the canonical url to the results if it matches the route regex,
+		 * stopping the crawl once there are maxResults results
+		 * @param link the crawled url
+		 * @return the result, or {@code null} if the url is not one
+		 */
+		private CrawlResult record(CrawlFrontier.Entry link) {
+			String url = link.getUrl();
+			if (this.stopped || !this.routePattern.matcher(url).find()) {
+				return null;
+			}
+			boolean retried;
+			synchronized (this) {
+				retried = this.retries.containsKey(link.getUrl());
+			}
+			boolean full;
+			CrawlResult result;
+			synchronized (this.crawlResults) {
+				if (retried) {
+					// recorded when the url was first started
+					for (CrawlResult recorded : this.crawlResults) {
+						if (recorded.getUrl().equals(url)) {
+							return recorded;
+						}
+					}
+				}
+				if (this.crawlResults.size() >= this.maxResults) {
+					return null;
+				}
+				String timestamp = Long.toString(System.currentTimeMillis());
+				result = new CrawlResult(url, link.getLocation(), timestamp);
+				this.crawlResults.add(result);
+				full = this.crawlResults.size() >= this.maxResults;
+			}
+			if (full) {
+				this.stop("maxResults of " + this.maxResults + " reached");
+			}
+			return result;
+		}
+		
+		/**
+		 * Hands the html fetched for a result to the consumer of result pages, if
+		 * there is one
+		 * @param result the result, or {@code null} if the url is not one
+		 * @param html the fetched html, or {@code null} if there was none
+		 */
+		private void page(CrawlResult result, String html) {
+			if (result != null && html != null && resultPages != null) {
+				resultPages.accept(result, html);
+			}
+		}
+		
+		/**
+		 * Starts fetching the url, unless the crawl has stopped. The check and the
+		 * start happen under the same lock as {@link #stop(String)}, so no request
+		 * is sent after a stop. The fetch is cancelled if the crawl stops while it
+		 * is in flight.
+		 * @param link the url to fetch, in flight
+		 * @return the fetch, completed with the page or {@code null}, or
+		 *   cancelled
+		 */
+		private CompletableFuture<HtmlFetcher.Page> fetch(CrawlFrontier.Entry link) {
+			URL url;
 			try {
-				synchronized (this.visited) {
-					if (this.visited.contains(this.seed) || this.visited.size() >= this.maxUrls || !this.seed.startsWith(this.base)) {
-						// System.out.println("Skipping, " + this.seed);
+				url = LinkExtractor.toUrl(link.getLocation());
+			} catch (MalformedURLException e) {
+				return CompletableFuture.completedFuture(null);
+			}
+			synchronized (this) {
+				if (!this.stopped) {
+					CompletableFuture<HtmlFetcher.Page> html = HtmlFetcher.fetchPageAsync(url, REDIRECTS_LIMIT);
+					this.inFlight.put(link, html);
+					return html;
+				}
+			}
+			CompletableFuture<HtmlFetcher.Page> cancelled = new CompletableFuture<>();
+			cancelled.cancel(true);
+			return cancelled;
+		}
+		
+		/**
+		 * Stops the crawl early: drops the frontier so no more urls are started,
+		 * lets tasks parked in the scheduler run at once, and cancels the fetches
+		 * in flight. Queued tasks find the crawl stopped and finish right away.
+		 * @param reason why the crawl stopped, for the log
+		 */
+		private void stop(String reason) {
+			List<CompletableFuture<HtmlFetcher.Page>> fetches = new ArrayList<>();
+			synchronized (this) {
+				if (this.stopped || this.done.isDone()) {
+					return;
+				}
+				this.stopped = true;
+				this.drop();
+				for (CompletableFuture<HtmlFetcher.Page> html : this.inFlight.values()) {
+					if (html != null) {
+						fetches.add(html);
+					}
+				}
+			}
+			System.out.println("Stopping crawl: " + reason);
+			if (scheduler != null) {
+				scheduler.releaseAll();
+			}
+			for (CompletableFuture<HtmlFetcher.Page> html : fetches) {
+				html.cancel(true);
+			}
+			this.dispatch();
+		}
+		
+		/**
+		 * Starts urls from the frontier until the in-flight limit is reached. With
+		 * a scorer, the budget is charged here and the frontier is dropped once it
+		 * runs out. Returns right away if another thread is dispatching, since
+		 * that thread checks the frontier and the slots again before it stops.
+		 */
+		private void dispatch() {
+			synchronized (this) {
+				if (this.dispatching) {
+					return;
+				}
+				this.dispatching = true;
+			}
+			while (true) {
+				CrawlFrontier.Entry link;
+				synchronized (this) {
+					if (this.scorer != null && !this.frontier.isEmpty() && this.reserved.get() >= this.maxUrls) {
+						this.drop();
+					}
+					if (this.frontier.isEmpty() || this.inFlight.size() >= this.maxInFlight() || this.stopped) {
+						if ((this.frontier.isEmpty() || this.stopped) && this.inFlight.isEmpty()) {
+							this.finish();
+						}
+						this.dispatching = false;
 						return;
 					}
-					this.visited.add(this.seed);
+					try {
+						link = this.frontier.poll();
+					} catch (IOException e) {
+						// the spilled urls are lost, so finish with what is in flight
+						System.out.println("Exception occurred reading the crawl frontier: " + e.getMessage());
+						this.drop();
+						continue;
+					}
+					if (this.scorer != null && !this.reserve()) {
+						continue;
+					}
+					this.inFlight.put(link, null);
 				}
-				if (this.matchesRouteRegex()) {
-					synchronized (this.crawlResults) {
-						String timestamp = Long.toString(System.currentTimeMillis());
-						CrawlResult crawlResult = new CrawlResult(this.seed, timestamp);
-						this.crawlResults.add(crawlResult);
+				schedule(link.getLocation(), this.newTask(link), this.executor());
+			}
+		}
+		
+		/**
+		 * Frees the slot of a finished url, putting it back at the front of the
+		 * frontier if its host throttled it and it has retries left, saves a
+		 * checkpoint if one is due, and starts more urls.
+		 * @param link the finished url
+		 * @param throttled whether the host answered with a 429 or 503
+		 */
+		private void release(CrawlFrontier.Entry link, boolean throttled) {
+			synchronized (this) {
+				this.inFlight.remove(link);
+				if (throttled && !this.stopped && this.retries.merge(link.getUrl(), 1, Integer::sum) <= RETRIES_LIMIT) {
+					this.frontier.addFirst(link);
+					if (this.scorer != null) {
+						// charged again when it is started again
+						this.reserved.decrementAndGet();
 					}
 				}
-				// System.out.println("Processing html...");
-				String html = processHtml(this.seed);
-				// System.out.println("Processed html");
-				// System.out.println("Extracting links...");
-				List<String> links = extractLinks(html, this.seed);
-				// System.out.println("Extracted links");
-				for (String link : links) {
-					this.queue.execute(new Task(
-						link,
-						this.base,
-						this.maxUrls, 
-						this.visited, 
-						this.routeRegex, 
-						this.crawlResults, 
-						this.queue)
-					);	
+			}
+			if (this.checkpoint != null && this.checkpoint.isDue()) {
+				this.saveCheckpoint();
+			}
+			this.dispatch();
+		}
+		
+		/**
+		 * Saves the crawl state. Urls in flight are saved at the front of the
+		 * best level of the frontier, so they are crawled again first on resume.
+		 * With a scorer, they are refunded to the budget.
+		 */
+		private void saveCheckpoint() {
+			this.lock.write().lock();
+			try {
+				synchronized (this) {
+					CrawlCheckpoint.State state = new CrawlCheckpoint.State();
+					state.reserved = this.reserved.get() - (this.scorer != null ? this.inFlight.size() : 0);
+					state.heads = this.frontier.getHeads();
+					state.heads.get(0).addAll(0, this.inFlight.keySet());
+					state.segments = this.frontier.checkpoint();
+					Set<String> inFlightUrls = new HashSet<>();
+					for (CrawlFrontier.Entry entry : this.inFlight.keySet()) {
+						inFlightUrls.add(entry.getUrl());
+					}
+					synchronized (this.crawlResults) {
+						state.results = new ArrayList<>();
+						for (CrawlResult result : this.crawlResults) {
+							if (!inFlightUrls.contains(result.getUrl())) {
+								state.results.add(result);
+							}
+						}
+					}
+					this.checkpoint.save(state, this.visited);
+					// the saved state no longer refers to the consumed segments
+					this.frontier.deleteConsumed();
 				}
-			} catch (Exception e) {
-				System.out.println("Exception occurred in WebCrawler task: " + e.getMessage());
+			} catch (IOException e) {
+				System.out.println("Exception occurred saving crawl checkpoint: " + e.getMessage());
+			} finally {
+				this.lock.write().unlock();
 			}
 		}
 		
-		private boolean matchesRouteRegex() {
-			Pattern pattern = Pattern.compile(this.routeRegex);
-			Matcher matcher = pattern.matcher(this.seed);
-			return matcher.find();
+		/**
+		 * Drops the urls left in the frontier once the budget has run out. Called
+		 * while holding this.
+		 */
+		private void drop() {
+			try {
+				this.frontier.close();
+			} catch (IOException e) {
+				System.out.println("Exception occurred closing the crawl frontier: " + e.getMessage());
+			}
+		}
+		
+		/**
+		 * Completes the crawl once nothing is queued or in flight, deleting the
+		 * frontier segments. Called while holding this.
+		 */
+		private void finish() {
+			if (this.done.isDone()) {
+				return;
+			}
+			this.drop();
+			this.done.complete(this.crawlResults);
+		}
+		
+		/**
+		 * Returns the max number of urls started but not finished
+		 * @return the in-flight limit
+		 */
+		protected int maxInFlight() {
+			return this.maxInFlight;
 		}
+		
+		/**
+		 * Returns the task that crawls the url, calling {@link #release(CrawlFrontier.Entry, boolean)}
+		 * once it is finished
+		 * @param link the url to crawl, already claimed
+		 * @return the task
+		 */
+		protected abstract Runnable newTask(CrawlFrontier.Entry link);
+		
+		/**
+		 * Returns where the tasks run
+		 * @return the executor
+		 */
+		protected abstract Executor executor();
 	}
 	
 	/**
-	 * Begins the multi-threaded web crawl
-	 * @param seed initial url to start with
-	 * @param maxUrls number of max urls to visit
-	 * @param index the index to add the words in each web page to
-	 * @param queue the WorkQueue for multi-threading
+	 * A crawl whose tasks each block a worker thread of a {@link TaskQueue}
+	 * while they fetch. No more tasks are in flight than a bounded queue holds,
+	 * so adding a task never finds the queue full, and never waits for room or
+	 * runs the task in the thread adding it.
 	 */
-	public List<CrawlResult> crawl(String seed, String base, int maxUrls, String routeRegex, WorkQueue queue) {
-		List<CrawlResult> crawlResults = Collections.synchronizedList(new ArrayList<CrawlResult>());
-		Set<String> visited = new HashSet<>();
-		queue.execute(new Task(seed, base, maxUrls, visited, routeRegex, crawlResults, queue));
-		return crawlResults;
+	private class QueueCrawl extends Crawl {
+		/** The TaskQueue the tasks run on */
+		private final TaskQueue queue;
+		
+		private QueueCrawl(String base, int maxUrls, String routeRegex, VisitedSet visited, TaskQueue queue, CrawlCheckpoint checkpoint, int maxResults, Duration maxDuration) {
+			super(base, maxUrls, routeRegex, visited, limit(queue), checkpoint, maxResults, maxDuration);
+			this.queue = queue;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 *
+		 * <p>
+		 * Follows the size of the queue, which changes if the queue adapts it.
+		 */
+		@Override
+		protected int maxInFlight() {
+			return limit(this.queue);
+		}
+		
+		/**
+		 * Returns the in-flight limit for the queue: {@link #TASKS_PER_WORKER}
+		 * tasks per worker, but no more than a bounded queue holds
+		 * @param queue the queue the tasks run on
+		 * @return the in-flight limit
+		 */
+		private static int limit(TaskQueue queue) {
+			int limit = queue.size() * TASKS_PER_WORKER;
+			return queue.getCapacity() > 0 ? Math.min(limit, queue.getCapacity()) : limit;
+		}
+		
+		@Override
+		protected Runnable newTask(CrawlFrontier.Entry link) {
+			return new Task(link, this);
+		}
+		
+		@Override
+		protected Executor executor() {
+			return this.queue::execute;
+		}
 	}
 	
 	/**
-	 * Helper method to extract links from raw html
-	 * @param html the html to extract links from
-	 * @param base the base url 
-	 * @return List of the extracted links
-	 * @throws MalformedURLException if url is not valid
+	 * Task to be run by TaskQueue for multi-threading
+	 * @author domin
+	 *
 	 */
-	private List<String> extractLinks(String html, String base) throws MalformedURLException {
-		html = HtmlCleaner.stripBlockElements(HtmlCleaner.stripComments(html));
-		Pattern p = Pattern.compile("href=\"(.*?)(#|\")");
-		Matcher m = p.matcher(html);
-		List<String> links = new ArrayList<>();
-		while (m.find()) {
+	private class Task implements Runnable {
+		/** URL to visit, already claimed */
+		private final CrawlFrontier.Entry seed;
+		/** The crawl the task belongs to */
+		private final Crawl crawl;
+		
+		/**
+		 * Constructor initializes members
+		 * @param seed the url to visit, already claimed
+		 * @param crawl the crawl the task belongs to
+		 */
+		private Task(CrawlFrontier.Entry seed, Crawl crawl) {
+			this.seed = seed;
+			this.crawl = crawl;
+		}
+		
+		@Override
+		public void run() {
+			boolean throttled = false;
 			try {
-				String match = m.group(1);
-				URL url = new URL(new URL(base), match);
-				String link = url.toString();
-			    links.add(link);
+				CrawlResult result = this.crawl.record(this.seed);
+				HtmlFetcher.Page page = this.crawl.fetch(this.seed).join();
+				if (page != null) {
+					this.crawl.offer(extractLinks(page.getHtml(), page.getUrl().toString()), this.seed);
+					this.crawl.page(result, page.getHtml());
+				}
+			} catch (CancellationException e) {
+				// the crawl stopped while the page was being fetched
 			} catch (Exception e) {
-				continue;
+				throttled = HtmlFetcher.isThrottled(e);
+				if (!throttled) {
+					System.out.println("Exception occurred in WebCrawler task: " + e.getMessage());
+				}
+			} finally {
+				this.crawl.release(this.seed, throttled);
 			}
 		}
-		return links;
 	}
 	
 	/**
-	 * Helper method to fetch and process html and add it to the inverted index
-	 * @param base the base url
-	 * @)param index the index to add to
-	 * @param metadata the metadata to add for the web page visited
-	 * @return String of the html downloaded from the base url
-	 * @throws IOException if failed to fetch and process html
+	 * An asynchronous crawl. Fetches are started with
+	 * {@link HtmlFetcher#fetchPageAsync(URL, int)} and link extraction runs as a
+	 * continuation on the fetcher's threads, so the number of requests in flight
+	 * is limited by the in-flight limit instead of by the number of threads.
 	 */
-	private String processHtml(String base) throws IOException {
-		String html = HtmlFetcher.fetch(base, REDIRECTS_LIMIT);
-		if (html == null) {
-			return "";
+	private class AsyncCrawl extends Crawl {
+		private AsyncCrawl(String base, int maxUrls, String routeRegex, VisitedSet visited, int maxInFlight, CrawlCheckpoint checkpoint, int maxResults, Duration maxDuration) {
+			super(base, maxUrls, routeRegex, visited, maxInFlight < 1 ? MAX_IN_FLIGHT_DEFAULT : maxInFlight, checkpoint, maxResults, maxDuration);
+		}
+		
+		@Override
+		protected Runnable newTask(CrawlFrontier.Entry link) {
+			return () -> this.start(link);
 		}
-		// String text = HtmlCleaner.stripHtml(html).strip();
-		return html;
+		
+		@Override
+		protected Executor executor() {
+			return Runnable::run;
+		}
+		
+		/**
+		 * Records the link as a result if it matches and starts fetching it. Once
+		 * the fetch completes, the extracted links are offered and the slot is
+		 * released.
+		 *
+		 * @param link the link to fetch
+		 */
+		private void start(CrawlFrontier.Entry link) {
+			CrawlResult result = super.record(link);
+			super.fetch(link)
+				.thenAccept(page -> this.enqueue(page, link, result))
+				.whenComplete((nothing, e) -> super.release(link, HtmlFetcher.isThrottled(e)));
+		}
+		
+		/**
+		 * Extracts the links from the fetched html and offers them to the crawl,
+		 * then hands the html of a result to the consumer of result pages.
+		 *
+		 * @param page the fetched page, or {@code null} if there was none
+		 * @param link the url the page was fetched for
+		 * @param result the result of the url, or {@code null} if it is not one
+		 */
+		private void enqueue(HtmlFetcher.Page page, CrawlFrontier.Entry link, CrawlResult result) {
+			if (page == null) {
+				return;
+			}
+			try {
+				super.offer(extractLinks(page.getHtml(), page.getUrl().toString()), link);
+				super.page(result, page.getHtml());
+			} catch (Exception e) {
+				System.out.println("Exception occurred in WebCrawler async task: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Begins the multi-threaded web crawl
+	 * @param seed initial url to start with
+	 * @param base the base the crawled urls must start with
+	 * @param maxUrls number of max urls to visit
+	 * @param routeRegex the regex urls must match to be a result
+	 * @param queue the TaskQueue for multi-threading
+	 * @return the results, filled in as the crawl progresses
+	 */
+	public List<CrawlResult> crawl(String seed, String base, int maxUrls, String routeRegex, TaskQueue queue) {
+		return this.crawl(seed, base, maxUrls, routeRegex, queue, new ExactVisitedSet());
+	}
+
+	/**
+	 * Begins the multi-threaded web crawl, tracking claimed urls in the given set
+	 * @param seed initial url to start with
+	 * @param base the base the crawled urls must start with
+	 * @param maxUrls number of max urls to visit
+	 * @param routeRegex the regex urls must match to be a result
+	 * @param queue the TaskQueue for multi-threading
+	 * @param visited the set of claimed urls, usually empty
+	 * @return the results, filled in as the crawl progresses
+	 */
+	public List<CrawlResult> crawl(String seed, String base, int maxUrls, String routeRegex, TaskQueue queue, VisitedSet visited) {
+		try {
+			return this.crawl(seed, base, maxUrls, routeRegex, queue, visited, null, 0, null);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Begins the multi-threaded web crawl, or resumes it if the checkpoint
+	 * exists, periodically saving progress to the checkpoint. The crawl stops
+	 * early, cancelling the fetches in flight, once it has maxResults results or
+	 * has run for maxDuration.
+	 * @param seed initial url to start with, ignored when resuming
+	 * @param base the base the crawled urls must start with
+	 * @param maxUrls number of max urls to visit
+	 * @param routeRegex the regex urls must match to be a result
+	 * @param queue the TaskQueue for multi-threading
+	 * @param visited the set of claimed urls, empty
+	 * @param checkpoint where progress is saved, or {@code null} to not save it
+	 * @param maxResults number of results after which to stop, or 0 for no limit
+	 * @param maxDuration how long to run before stopping, or {@code null} for no
+	 *   limit
+	 * @return the results, filled in as the crawl progresses
+	 * @throws IOException if unable to read the checkpoint
+	 */
+	public List<CrawlResult> crawl(String seed, String base, int maxUrls, String routeRegex, TaskQueue queue, VisitedSet visited, CrawlCheckpoint checkpoint, int maxResults, Duration maxDuration) throws IOException {
+		Crawl crawl = new QueueCrawl(base, maxUrls, routeRegex, visited, queue, checkpoint, maxResults, maxDuration);
+		crawl.begin(seed);
+		return crawl.crawlResults;
+	}
+
+	/**
+	 * Begins an asynchronous web crawl. Instead of blocking a worker thread per
+	 * request, up to {@code maxInFlight} requests are in flight at once on the
+	 * threads of {@link HttpsFetcher}.
+	 * @param seed initial url to start with
+	 * @param base the base the crawled urls must start with
+	 * @param maxUrls number of max urls to visit
+	 * @param routeRegex the regex urls must match to be a result
+	 * @param maxInFlight max number of requests in flight at once
+	 * @return a future completed with the results once the crawl is finished
+	 */
+	public CompletableFuture<List<CrawlResult>> crawlAsync(String seed, String base, int maxUrls, String routeRegex, int maxInFlight) {
+		return this.crawlAsync(seed, base, maxUrls, routeRegex, maxInFlight, new ExactVisitedSet());
+	}
+
+	/**
+	 * Begins an asynchronous web crawl, tracking claimed urls in the given set
+	 * @param seed initial url to start with
+	 * @param base the base the crawled urls must start with
+	 * @param maxUrls number of max urls to visit
+	 * @param routeRegex the regex urls must match to be a result
+	 * @param maxInFlight max number of requests in flight at once
+	 * @param visited the set of claimed urls, usually empty
+	 * @return a future completed with the results once the crawl is finished
+	 */
+	public CompletableFuture<List<CrawlResult>> crawlAsync(String seed, String base, int maxUrls, String routeRegex, int maxInFlight, VisitedSet visited) {
+		try {
+			return this.crawlAsync(seed, base, maxUrls, routeRegex, maxInFlight, visited, null, 0, null);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Begins an asynchronous web crawl, or resumes it if the checkpoint exists,
+	 * periodically saving progress to the checkpoint. The crawl stops early,
+	 * cancelling the fetches in flight, once it has maxResults results or has
+	 * run for maxDuration.
+	 * @param seed initial url to start with, ignored when resuming
+	 * @param base the base the crawled urls must start with
+	 * @param maxUrls number of max urls to visit
+	 * @param routeRegex the regex urls must match to be a result
+	 * @param maxInFlight max number of requests in flight at once
+	 * @param visited the set of claimed urls, empty
+	 * @param checkpoint where progress is saved, or {@code null} to not save it
+	 * @param maxResults number of results after which to stop, or 0 for no limit
+	 * @param maxDuration how long to run before stopping, or {@code null} for no
+	 *   limit
+	 * @return a future completed with the results once the crawl is finished
+	 * @throws IOException if unable to read the checkpoint
+	 */
+	public CompletableFuture<List<CrawlResult>> crawlAsync(String seed, String base, int maxUrls, String routeRegex, int maxInFlight, VisitedSet visited, CrawlCheckpoint checkpoint, int maxResults, Duration maxDuration) throws IOException {
+		Crawl crawl = new AsyncCrawl(base, maxUrls, routeRegex, visited, maxInFlight, checkpoint, maxResults, maxDuration);
+		crawl.begin(seed);
+		return crawl.done;
+	}
+
+	/**
+	 * Runs the task for the url on the executor, going through the scheduler
+	 * first if requests are paced
+	 * @param url the url the task will fetch
+	 * @param task the task
+	 * @param executor where the task runs
+	 */
+	private void schedule(String url, Runnable task, Executor executor) {
+		if (this.scheduler != null) {
+			this.scheduler.submit(url, task);
+		} else {
+			executor.execute(task);
+		}
+	}
+	
+	/**
+	 * Helper method to extract links from raw html
+	 * @param html the html to extract links from
+	 * @param base the url the html was fetched from, after redirects
+	 * @return List of the extracted links
+	 * @throws MalformedURLException if url is not valid
+	 * @see LinkExtractor#extractLinks(String, String)
+	 */
+	private List<String> extractLinks(String html, String base) throws MalformedURLException {
+		return LinkExtractor.extractLinks(html, base);
 	}
 }
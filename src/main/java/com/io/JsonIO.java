@@ -7,6 +7,7 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 import com.scraper.ConfigField;
 import com.scraper.ScrapeResult;
+import com.scraper.ScraperConfig;
 
 import java.io.BufferedWriter;
 import java.io.FileReader;
@@ -18,7 +19,14 @@ import java.util.HashMap;
 import java.util.List;
 
 public class JsonIO {
-	public static List<ConfigField> readConfig(String path) throws Exception {
+	/**
+	 * Reads the scraper config and compiles it, so every page is scraped with the
+	 * same compiled selectors
+	 * @param path the JSON config file
+	 * @return the compiled config
+	 * @throws Exception if unable to read the file or the config is invalid
+	 */
+	public static ScraperConfig readConfig(String path) throws Exception {
         Gson gson = new Gson();
         Type type = new TypeToken<HashMap<String, List<HashMap<String, String>>>>(){}.getType();
         FileReader fileReader = new FileReader(path);
@@ -34,21 +42,33 @@ public class JsonIO {
         	String name = field.getOrDefault("name", null);
         	String fallbackValue = field.getOrDefault("fallbackValue", null);
         	String dataType = field.getOrDefault("dataType", "text");
+        	String maxIndex = field.getOrDefault("maxIndex", "0");
         	
         	if (selectorType == null || selectorValue == null || name == null || fallbackValue == null)
         		throw new Exception("Invalid JSON config for scraper.");
         	
-        	config.add(new ConfigField(selectorType, selectorValue, name, fallbackValue, dataType));
+        	try {
+        		config.add(new ConfigField(selectorType, selectorValue, name, fallbackValue, dataType, Integer.parseInt(maxIndex)));
+        	} catch (NumberFormatException e) {
+        		throw new Exception("Invalid maxIndex in JSON config for scraper: " + maxIndex);
+        	}
         }
-        return config;
+        return new ScraperConfig(config);
 	}
 	
+	/**
+	 * Reads the sweep config and compiles its scraper fields
+	 * @param path the JSON sweep file
+	 * @return the sweep
+	 * @throws Exception if unable to read the file or the fields are invalid
+	 */
 	public static Sweep readSweepConfig(String path) throws Exception {
         Gson gson = new Gson();
         Type type = new TypeToken<Sweep>(){}.getType();
         FileReader fileReader = new FileReader(path);
         Sweep sweep = gson.fromJson(fileReader, type);
         fileReader.close();
+        sweep.setConfig(new ScraperConfig(sweep.getFields()));
         return sweep;
 	}
 	
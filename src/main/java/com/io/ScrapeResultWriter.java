@@ -0,0 +1,70 @@
+package com.io;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+import com.scraper.ScrapeResult;
+
+/**
+ * Writes scrape results to a JSON file as they are produced, so they do not
+ * have to be kept in memory until the scrape is finished. The file has the
+ * same format as {@link JsonIO#scrapeResultsToJson(java.util.List, String)}
+ * once the writer is closed. Safe to use from several threads at once.
+ */
+public class ScrapeResultWriter implements Closeable {
+	/** Converts each result to JSON */
+	private final Gson gson;
+	/** Writes the JSON array of results, guarded by this */
+	private final JsonWriter writer;
+	/** Number of results written, guarded by this */
+	private int written;
+
+	/**
+	 * Starts writing a JSON array of results to the file.
+	 *
+	 * @param path the file to write, replaced if it exists
+	 * @throws IOException if unable to open the file
+	 */
+	public ScrapeResultWriter(String path) throws IOException {
+		this.gson = new GsonBuilder().setPrettyPrinting().create();
+		this.writer = this.gson.newJsonWriter(new BufferedWriter(new FileWriter(path)));
+		this.writer.beginArray();
+		this.written = 0;
+	}
+
+	/**
+	 * Appends a result to the file.
+	 *
+	 * @param result the result to write
+	 * @throws IOException if unable to write the file
+	 */
+	public synchronized void write(ScrapeResult result) throws IOException {
+		this.gson.toJson(result, ScrapeResult.class, this.writer);
+		this.written++;
+	}
+
+	/**
+	 * Returns the number of results written.
+	 *
+	 * @return the number of results written
+	 */
+	public synchronized int getWritten() {
+		return this.written;
+	}
+
+	/**
+	 * Ends the JSON array and closes the file.
+	 *
+	 * @throws IOException if unable to write the file
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		this.writer.endArray();
+		this.writer.close();
+	}
+}
@@ -5,6 +5,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 
 public class SweepRunIO {
 	public static void initSweepRun(String path) throws IOException {
@@ -13,6 +14,10 @@ public class SweepRunIO {
 	}
 	
 	public static void completeSweepRun(String path, String runId, long startTime, String status, String resultsPath) {
+		completeSweepRun(path, runId, startTime, status, resultsPath, List.of());
+	}
+	
+	public static void completeSweepRun(String path, String runId, long startTime, String status, String resultsPath, List<String> stats) {
 		try {
 			long endTime = System.currentTimeMillis();
 			try (BufferedWriter writer = new BufferedWriter(new FileWriter(path))) {
@@ -25,6 +30,10 @@ public class SweepRunIO {
 				writer.write(status);
 				writer.newLine();
 				writer.write(resultsPath);
+				for (String stat : stats) {
+					writer.newLine();
+					writer.write(stat);
+				}
 			}
 		} catch (Exception e) {
 			System.out.println("Failed to complete sweep: " + e.getMessage());
@@ -6,13 +6,20 @@ public class ConfigField {
 	private final String name;
 	private final String fallbackValue;
 	private final String dataType;
+	/** Largest index an XPath selector with the index placeholder is expanded to, or 0 for the default */
+	private final int maxIndex;
 	
 	public ConfigField(String selectorType, String selectorValue, String name, String fallbackValue, String dataType) {
+		this(selectorType, selectorValue, name, fallbackValue, dataType, 0);
+	}
+	
+	public ConfigField(String selectorType, String selectorValue, String name, String fallbackValue, String dataType, int maxIndex) {
 		this.selectorType = selectorType;
 		this.selectorValue = selectorValue;
 		this.name = name;
 		this.fallbackValue = fallbackValue;
 		this.dataType = dataType;
+		this.maxIndex = maxIndex;
 	}
 	
 	public String getSelectorType() {
@@ -34,4 +41,8 @@ public class ConfigField {
 	public String getDataType() {
 		return this.dataType;
 	}
+	
+	public int getMaxIndex() {
+		return this.maxIndex;
+	}
 }
@@ -0,0 +1,455 @@
+package com.scraper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+/**
+ * An XPath selector translated into a test of a single element, so that many
+ * fields can be matched in one walk over the jsoup page instead of one query
+ * each over its W3C copy. Only location paths made of element steps are
+ * translated: child ({@code /}) and descendant ({@code //}) steps with a name
+ * or {@code *}, each with any of the predicates {@code [n]}, {@code [%d%]},
+ * {@code [@a]}, {@code [@a='v']} and {@code [contains(@a, 'v')]}. Anything
+ * else, such as text nodes, other axes, functions or unions, is left to XPath.
+ * A relative path starts at the root element, the context node jsoup and the
+ * XPath fallback evaluate it from, so {@code body/ul} is {@code /html/body/ul}.
+ *
+ * <p>
+ * An element matches when it passes the last step and its ancestors pass the
+ * steps before, the way a CSS selector is matched from the right. Names and
+ * attributes are compared exactly, as XPath compares them on the W3C copy.
+ */
+public class PathMatcher {
+	/** How a step is reached from the step before */
+	private enum Axis {
+		CHILD,
+		DESCENDANT
+	}
+
+	/** What a predicate tests */
+	private enum Test {
+		/** The position among the siblings passing the step so far */
+		POSITION,
+		/** The position, taken as the index of the index placeholder */
+		INDEX,
+		/** Whether the attribute is present */
+		HAS,
+		/** Whether the attribute equals the value */
+		EQUALS,
+		/** Whether the attribute contains the value; a missing attribute is empty */
+		CONTAINS
+	}
+
+	/**
+	 * A predicate of a step.
+	 */
+	private static class Predicate {
+		private final Test test;
+		private final String name;
+		private final String value;
+		private final int position;
+
+		private Predicate(Test test, String name, String value, int position) {
+			this.test = test;
+			this.name = name;
+			this.value = value;
+			this.position = position;
+		}
+
+		/**
+		 * Checks an attribute predicate.
+		 * @param element the element
+		 * @return whether the element passes, always for a position predicate
+		 */
+		private boolean matches(Element element) {
+			if (this.name == null) {
+				return true;
+			}
+			boolean has = element.attributesSize() > 0 && element.attributes().hasKey(this.name);
+			switch (this.test) {
+			case HAS:
+				return has;
+			case EQUALS:
+				return has && element.attributes().get(this.name).equals(this.value);
+			case CONTAINS:
+				return (has ? element.attributes().get(this.name) : "").contains(this.value);
+			default:
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * A step of the path.
+	 */
+	private static class Step {
+		private final Axis axis;
+		/** The element name, or {@code null} for any element */
+		private final String name;
+		private final List<Predicate> predicates;
+
+		private Step(Axis axis, String name, List<Predicate> predicates) {
+			this.axis = axis;
+			this.name = name;
+			this.predicates = predicates;
+		}
+
+		/**
+		 * Checks the name and the attribute predicates before the nth one. A step
+		 * has at most one position predicate, so these are all the predicates
+		 * that decide which siblings it counts.
+		 * @param element the element
+		 * @param n the number of predicates to check
+		 * @return whether the element passes
+		 */
+		private boolean matches(Element element, int n) {
+			if (this.name != null && !this.name.equals(element.tagName())) {
+				return false;
+			}
+			for (int i = 0; i < n; i++) {
+				if (!this.predicates.get(i).matches(element)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Checks the position predicate of an element passing the rest of the
+		 * step. Run last, since it counts the siblings before the element.
+		 * @param element the element
+		 * @return whether the element is at the position, or true if the step
+		 *   has no position predicate
+		 */
+		private boolean matchesPosition(Element element) {
+			for (int i = 0; i < this.predicates.size(); i++) {
+				Predicate predicate = this.predicates.get(i);
+				if (predicate.test == Test.POSITION) {
+					return this.position(element, i, predicate.position) == predicate.position;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Returns the position of an element among the siblings that pass the
+		 * step up to the nth predicate, the way a position predicate counts.
+		 * @param element an element passing the step up to the nth predicate
+		 * @param n the index of the position predicate
+		 * @param limit the largest position of interest
+		 * @return the position, from 1, or more than the limit if it is past it
+		 */
+		private int position(Element element, int n, int limit) {
+			int position = 1;
+			for (Element sibling = element.previousElementSibling(); sibling != null && position <= limit; sibling = sibling.previousElementSibling()) {
+				if (this.matches(sibling, n)) {
+					position++;
+				}
+			}
+			return position;
+		}
+	}
+
+	/** The steps, from the root */
+	private final List<Step> steps;
+	/** The step with the index placeholder, or -1 */
+	private final int indexStep;
+	/** Whether the path starts at the root element instead of the document */
+	private final boolean relative;
+
+	private PathMatcher(List<Step> steps, int indexStep, boolean relative) {
+		this.steps = steps;
+		this.indexStep = indexStep;
+		this.relative = relative;
+	}
+
+	/**
+	 * Translates an XPath selector.
+	 * @param xpath the selector
+	 * @return the matcher, or {@code null} if the selector is not a path this
+	 *   class handles
+	 */
+	public static PathMatcher parse(String xpath) {
+		return new Parser(xpath).parse();
+	}
+
+	/**
+	 * Returns the name of the elements the last step selects.
+	 * @return the name, or {@code null} for any element
+	 */
+	public String getName() {
+		return this.steps.get(this.steps.size() - 1).name;
+	}
+
+	/**
+	 * Matches an element of a page.
+	 * @param element the element
+	 * @param maxIndex the largest index the placeholder is replaced by
+	 * @return 0 if the path does not select the element; otherwise the index
+	 *   the element is selected at, for a path with the index placeholder, or 1
+	 */
+	public int match(Element element, int maxIndex) {
+		if (!this.matches(this.steps.size() - 1, element)) {
+			return 0;
+		}
+		if (this.indexStep < 0) {
+			return 1;
+		}
+		// only child steps follow the placeholder, so it is a fixed ancestor
+		Element indexed = element;
+		for (int i = this.steps.size() - 1; i > this.indexStep; i--) {
+			indexed = indexed.parent();
+		}
+		Step step = this.steps.get(this.indexStep);
+		for (int i = 0; i < step.predicates.size(); i++) {
+			if (step.predicates.get(i).test == Test.INDEX) {
+				int index = step.position(indexed, i, maxIndex);
+				return index <= maxIndex ? index : 0;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Checks that an element passes a step and its ancestors the steps before.
+	 * @param index the step
+	 * @param element the element
+	 * @return whether the element passes
+	 */
+	private boolean matches(int index, Element element) {
+		Step step = this.steps.get(index);
+		if (element instanceof Document || !step.matches(element, step.predicates.size())) {
+			return false;
+		}
+		Element parent = element.parent();
+		boolean ancestors = false;
+		if (index == 0 && step.axis == Axis.DESCENDANT) {
+			ancestors = true;
+		} else if (index == 0) {
+			ancestors = this.relative ? parent != null && parent.parent() instanceof Document : parent instanceof Document;
+		} else if (step.axis == Axis.CHILD) {
+			ancestors = parent != null && this.matches(index - 1, parent);
+		} else {
+			for (Element ancestor = parent; ancestor != null && !ancestors; ancestor = ancestor.parent()) {
+				ancestors = this.matches(index - 1, ancestor);
+			}
+		}
+		return ancestors && step.matchesPosition(element);
+	}
+
+	/**
+	 * Reads the supported subset of XPath.
+	 */
+	private static class Parser {
+		private final String xpath;
+		private int at;
+
+		private Parser(String xpath) {
+			this.xpath = xpath;
+			this.at = 0;
+		}
+
+		/**
+		 * Reads the whole selector.
+		 * @return the matcher, or {@code null} if the selector is not supported
+		 */
+		private PathMatcher parse() {
+			List<Step> steps = new ArrayList<>();
+			int indexStep = -1;
+			this.space();
+			Axis axis = this.consume("//") ? Axis.DESCENDANT : Axis.CHILD;
+			boolean relative = axis == Axis.CHILD && !this.consume("/");
+			while (true) {
+				Step step = this.step(axis);
+				if (step == null) {
+					return null;
+				}
+				for (Predicate predicate : step.predicates) {
+					if (predicate.test == Test.INDEX) {
+						if (indexStep >= 0) {
+							return null;
+						}
+						indexStep = steps.size();
+					}
+				}
+				if (indexStep >= 0 && indexStep < steps.size() && axis == Axis.DESCENDANT) {
+					// the indexed element would not be a fixed ancestor
+					return null;
+				}
+				steps.add(step);
+				this.space();
+				if (this.at == this.xpath.length()) {
+					break;
+				}
+				if (this.consume("//")) {
+					axis = Axis.DESCENDANT;
+				} else if (this.consume("/")) {
+					axis = Axis.CHILD;
+				} else {
+					return null;
+				}
+			}
+			return new PathMatcher(steps, indexStep, relative);
+		}
+
+		/**
+		 * Reads a step and its predicates.
+		 * @param axis how the step is reached
+		 * @return the step, or {@code null} if not supported
+		 */
+		private Step step(Axis axis) {
+			this.space();
+			String name;
+			if (this.consume("*")) {
+				name = null;
+			} else {
+				name = this.name();
+				if (name == null) {
+					return null;
+				}
+			}
+			List<Predicate> predicates = new ArrayList<>();
+			boolean position = false;
+			this.space();
+			while (this.consume("[")) {
+				Predicate predicate = this.predicate();
+				this.space();
+				if (predicate == null || !this.consume("]")) {
+					return null;
+				}
+				if (predicate.test == Test.POSITION || predicate.test == Test.INDEX) {
+					if (position) {
+						return null;
+					}
+					position = true;
+				}
+				predicates.add(predicate);
+				this.space();
+			}
+			return new Step(axis, name, predicates);
+		}
+
+		/**
+		 * Reads the inside of a predicate.
+		 * @return the predicate, or {@code null} if not supported
+		 */
+		private Predicate predicate() {
+			this.space();
+			if (this.consume(ScraperConfig.INDEX_PLACEHOLDER)) {
+				return new Predicate(Test.INDEX, null, null, 0);
+			}
+			if (this.at < this.xpath.length() && Character.isDigit(this.xpath.charAt(this.at))) {
+				int start = this.at;
+				while (this.at < this.xpath.length() && Character.isDigit(this.xpath.charAt(this.at))) {
+					this.at++;
+				}
+				try {
+					return new Predicate(Test.POSITION, null, null, Integer.parseInt(this.xpath.substring(start, this.at)));
+				} catch (NumberFormatException e) {
+					return null;
+				}
+			}
+			if (this.consume("contains")) {
+				this.space();
+				if (!this.consume("(") || !this.space() || !this.consume("@")) {
+					return null;
+				}
+				String name = this.name();
+				this.space();
+				if (name == null || !this.consume(",")) {
+					return null;
+				}
+				String value = this.literal();
+				this.space();
+				if (value == null || !this.consume(")")) {
+					return null;
+				}
+				return new Predicate(Test.CONTAINS, name, value, 0);
+			}
+			if (!this.consume("@")) {
+				return null;
+			}
+			String name = this.name();
+			if (name == null) {
+				return null;
+			}
+			this.space();
+			if (!this.consume("=")) {
+				return new Predicate(Test.HAS, name, null, 0);
+			}
+			String value = this.literal();
+			return value != null ? new Predicate(Test.EQUALS, name, value, 0) : null;
+		}
+
+		/**
+		 * Reads an element or attribute name without a prefix.
+		 * @return the name, or {@code null} if there is none
+		 */
+		private String name() {
+			int start = this.at;
+			while (this.at < this.xpath.length()) {
+				char c = this.xpath.charAt(this.at);
+				boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+				boolean other = (c >= '0' && c <= '9') || c == '-' || c == '.';
+				if (!letter && !(other && this.at > start)) {
+					break;
+				}
+				this.at++;
+			}
+			if (this.at == start || (this.at < this.xpath.length() && (this.xpath.charAt(this.at) == ':' || this.xpath.charAt(this.at) == '('))) {
+				// a prefixed name, an axis or a function
+				return null;
+			}
+			return this.xpath.substring(start, this.at);
+		}
+
+		/**
+		 * Reads a quoted string.
+		 * @return the string, or {@code null} if there is none
+		 */
+		private String literal() {
+			this.space();
+			if (this.at == this.xpath.length()) {
+				return null;
+			}
+			char quote = this.xpath.charAt(this.at);
+			if (quote != '\'' && quote != '"') {
+				return null;
+			}
+			int end = this.xpath.indexOf(quote, this.at + 1);
+			if (end < 0) {
+				return null;
+			}
+			String value = this.xpath.substring(this.at + 1, end);
+			this.at = end + 1;
+			return value;
+		}
+
+		/**
+		 * Skips whitespace.
+		 * @return true, so it can be chained with other reads
+		 */
+		private boolean space() {
+			while (this.at < this.xpath.length() && Character.isWhitespace(this.xpath.charAt(this.at))) {
+				this.at++;
+			}
+			return true;
+		}
+
+		/**
+		 * Reads the text if it comes next.
+		 * @param text the text
+		 * @return whether it was read
+		 */
+		private boolean consume(String text) {
+			if (this.xpath.startsWith(text, this.at)) {
+				this.at += text.length();
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -16,7 +16,7 @@ import org.openqa.selenium.support.ui.FluentWait;
 import org.openqa.selenium.support.ui.Wait;
 
 import com.crawler.WebCrawler.CrawlResult;
-import com.threading.WorkQueue;
+import com.threading.TaskQueue;
 
 public class ProductScraper {
 	public static final int MAX_ELEMENT_TIMEOUT_DEFAULT = 5;
@@ -29,12 +29,12 @@ public class ProductScraper {
 	
 	private class Task implements Runnable {
 		private final CrawlResult crawlResult;
-		private final List<ConfigField> config;
+		private final ScraperConfig config;
 		private final List<ScrapeResult> scrapeResults;
 		
 		private Task(
 			CrawlResult crawlResult, 
-			List<ConfigField> config, 
+			ScraperConfig config, 
 			List<ScrapeResult> scrapeResults
 		) {
 			this.crawlResult = crawlResult;
@@ -45,7 +45,7 @@ public class ProductScraper {
 		@Override
 		public void run() {
 			try {
-				scrape(this.crawlResult.getUrl(), this.config, this.scrapeResults, true);
+				scrape(this.crawlResult.getLocation(), this.config, this.scrapeResults, true);
 			} catch (Exception e) {
 				System.out.println("Exception occurred in ProductScraper task: " + e.getMessage());
 				e.printStackTrace();
@@ -54,10 +54,10 @@ public class ProductScraper {
 		
 	}
 	
-	public void scrape(List<CrawlResult> crawlResults, List<ConfigField> config, List<ScrapeResult> scrapeResults) {
+	public void scrape(List<CrawlResult> crawlResults, ScraperConfig config, List<ScrapeResult> scrapeResults) {
 		for (CrawlResult crawlResult : crawlResults) {
 			try {
-				this.scrape(crawlResult.getUrl(), config, scrapeResults, false);
+				this.scrape(crawlResult.getLocation(), config, scrapeResults, false);
 			} catch (Exception e) {
 				System.out.println("Exception occurred in ProductScraper: " + e.getMessage());
 				e.printStackTrace();
@@ -65,66 +65,49 @@ public class ProductScraper {
 		}
 	}
 	
-	public void scrape(List<CrawlResult> crawlResults, List<ConfigField> config, List<ScrapeResult> scrapeResults, WorkQueue queue) throws Exception {
+	public void scrape(List<CrawlResult> crawlResults, ScraperConfig config, List<ScrapeResult> scrapeResults, TaskQueue queue) throws Exception {
 		for (CrawlResult crawlResult : crawlResults) {
 			queue.execute(new Task(crawlResult, config, scrapeResults));
 		}
 	}
 	
-	private void scrape(String url, List<ConfigField> config, List<ScrapeResult> scrapeResults, boolean isMultiThreaded) throws Exception {
-		String html = Jsoup.connect(url).get().html();
-		org.jsoup.nodes.Document doc = Jsoup.parse(html);
+	/**
+	 * Scrapes a page that was already fetched, such as by the crawler, instead of
+	 * downloading it again. Safe to call from several threads at once.
+	 * @param url the url the page was fetched from
+	 * @param html the html of the page
+	 * @param config the fields to scrape
+	 * @param scrapeResults where the results are added
+	 */
+	public void scrape(String url, String html, ScraperConfig config, List<ScrapeResult> scrapeResults) {
+		this.scrape(url, Jsoup.parse(html, url), config, scrapeResults, true);
+	}
+	
+	private void scrape(String url, ScraperConfig config, List<ScrapeResult> scrapeResults, boolean isMultiThreaded) throws Exception {
+		this.scrape(url, Jsoup.connect(url).get(), config, scrapeResults, isMultiThreaded);
+	}
+	
+	private void scrape(String url, org.jsoup.nodes.Document doc, ScraperConfig config, List<ScrapeResult> scrapeResults, boolean isMultiThreaded) {
+		ScraperConfig.Page page = new ScraperConfig.Page(doc);
 		List<ScrapeResult> localScrapeResults = new ArrayList<>();
 		
-        for (ConfigField field : config) {
-        	List<org.jsoup.nodes.Element> elements = new ArrayList<>();
-        	
-        	String selectorType = field.getSelectorType();
-        	String selectorValue = field.getSelectorValue();
-        	String name = field.getName();
-        	String value = field.getFallbackValue();
-        	String dataType = field.getDataType();
-        	
-        	if (selectorType.equals("ID")) {
-        		elements.add(doc.getElementById(selectorValue));
-        	} else if (selectorType.equals("XPATH")) {
-        		if (selectorValue.contains("%d%")) {
-        			System.out.println("Multiple select XPATH");
-        			for (int i = 1; i < 100; i++) {
-        				List<org.jsoup.nodes.Element> selected = doc.selectXpath(selectorValue.replace("%d%", Integer.toString(i)));        				
-        				if (selected.size() == 1) {
-        					elements.add(selected.get(0));
-        				}
-        			}
-        		} else {
-        			List<org.jsoup.nodes.Element> selected = doc.selectXpath(selectorValue);
-        			if (selected.size() == 1) {
-        				elements.add(selected.get(0));
-        			}
-        		}
-        	}
-        	
-        	for (org.jsoup.nodes.Element element : elements) {
-        		if (element == null) break;
-        		if (dataType.equals("text")) {
-        			value = element.text();
-        		} else if (dataType.equals("image")) {
-        			value = element.attr("src");
-        		}
-        		ScrapeResult scrapeResult = new ScrapeResult(url);
-        		scrapeResult.addFeature(name, value);
-        		localScrapeResults.add(scrapeResult);
-        	}
-        }
-
-        
-        if (isMultiThreaded) {
-	        synchronized (scrapeResults) {
-	        	scrapeResults.addAll(localScrapeResults);
-	        }
-        } else {
-        	scrapeResults.addAll(localScrapeResults);
-        }
+		List<List<org.jsoup.nodes.Element>> selected = config.select(page);
+		for (int i = 0; i < selected.size(); i++) {
+			ScraperConfig.Field field = config.getFields().get(i);
+			for (org.jsoup.nodes.Element element : selected.get(i)) {
+				ScrapeResult scrapeResult = new ScrapeResult(url);
+				scrapeResult.addFeature(field.getName(), field.value(element));
+				localScrapeResults.add(scrapeResult);
+			}
+		}
+		
+		if (isMultiThreaded) {
+			synchronized (scrapeResults) {
+				scrapeResults.addAll(localScrapeResults);
+			}
+		} else {
+			scrapeResults.addAll(localScrapeResults);
+		}
 	}
 	
 	/**
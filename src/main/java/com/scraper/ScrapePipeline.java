@@ -0,0 +1,147 @@
+package com.scraper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import com.crawler.WebCrawler.CrawlResult;
+import com.io.ScrapeResultWriter;
+import com.threading.TaskQueue;
+
+/**
+ * Scrapes the pages of a crawl while it runs, from the html the crawler
+ * already fetched, instead of downloading every result again once the crawl
+ * is finished. Pass the pipeline to the {@link com.crawler.WebCrawler} as its
+ * consumer of result pages; each page becomes a task on the scraper queue,
+ * which should be bounded so that the crawl waits when the scraper falls
+ * behind rather than piling up pages in memory. Results are written as they
+ * are produced.
+ *
+ * <p>
+ * Results the crawler did not hand over, because their fetch failed or was
+ * cancelled or they were restored from a checkpoint, are downloaded and
+ * scraped by {@link #finish(List)}.
+ */
+public class ScrapePipeline implements BiConsumer<CrawlResult, String> {
+	/** Constant for default number of pages waiting for the scraper */
+	public static final int CAPACITY_DEFAULT = 64;
+
+	/** Scrapes each page */
+	private final ProductScraper scraper;
+	/** The fields to scrape */
+	private final ScraperConfig config;
+	/** The queue the scrape tasks run on */
+	private final TaskQueue queue;
+	/** Where the results are written, or {@code null} to keep them in memory */
+	private final ScrapeResultWriter writer;
+	/** Urls of the results handed over by the crawler */
+	private final Set<String> handed;
+	/** Results kept when there is no writer, guarded by itself */
+	private final List<ScrapeResult> scrapeResults;
+
+	/**
+	 * Initializes a pipeline
+	 * @param scraper scrapes each page
+	 * @param config the fields to scrape
+	 * @param queue the queue the scrape tasks run on, usually bounded
+	 * @param writer where the results are written as they are produced, or
+	 *   {@code null} to keep them in memory
+	 */
+	public ScrapePipeline(ProductScraper scraper, ScraperConfig config, TaskQueue queue, ScrapeResultWriter writer) {
+		this.scraper = scraper;
+		this.config = config;
+		this.queue = queue;
+		this.writer = writer;
+		this.handed = ConcurrentHashMap.newKeySet();
+		this.scrapeResults = new ArrayList<>();
+	}
+
+	/**
+	 * Adds a task to scrape the page of a result, waiting or running it in the
+	 * calling thread if the queue is full, depending on the queue
+	 * @param result the crawl result
+	 * @param html the html fetched for it
+	 */
+	@Override
+	public void accept(CrawlResult result, String html) {
+		if (this.handed.add(result.getUrl())) {
+			this.queue.execute(() -> this.scrape(result, html));
+		}
+	}
+
+	/**
+	 * Downloads and scrapes the results the crawler did not hand over, then waits
+	 * for every scrape task to finish
+	 * @param crawlResults all the results of the crawl
+	 */
+	public void finish(List<CrawlResult> crawlResults) {
+		List<CrawlResult> left = new ArrayList<>();
+		synchronized (crawlResults) {
+			for (CrawlResult result : crawlResults) {
+				if (!this.handed.contains(result.getUrl())) {
+					left.add(result);
+				}
+			}
+		}
+		if (!left.isEmpty()) {
+			System.out.println("Scraping " + left.size() + " results the crawler did not fetch...");
+			for (CrawlResult result : left) {
+				this.queue.execute(() -> this.scrape(result, null));
+			}
+		}
+		this.queue.finish();
+	}
+
+	/**
+	 * Returns the results kept in memory, empty if they were written instead
+	 * @return the results
+	 */
+	public List<ScrapeResult> getScrapeResults() {
+		return this.scrapeResults;
+	}
+
+	/**
+	 * Returns the number of results scraped so far
+	 * @return the number of results written or kept
+	 */
+	public int getResultCount() {
+		if (this.writer != null) {
+			return this.writer.getWritten();
+		}
+		synchronized (this.scrapeResults) {
+			return this.scrapeResults.size();
+		}
+	}
+
+	/**
+	 * Scrapes a result and writes or keeps its results
+	 * @param result the crawl result
+	 * @param html the html fetched for it, or {@code null} to download it
+	 */
+	private void scrape(CrawlResult result, String html) {
+		List<ScrapeResult> local = new ArrayList<>();
+		try {
+			if (html != null) {
+				this.scraper.scrape(result.getUrl(), html, this.config, local);
+			} else {
+				this.scraper.scrape(List.of(result), this.config, local);
+			}
+			if (this.writer != null) {
+				for (ScrapeResult scrapeResult : local) {
+					this.writer.write(scrapeResult);
+				}
+			} else {
+				synchronized (this.scrapeResults) {
+					this.scrapeResults.addAll(local);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Exception occurred writing scrape results: " + e.getMessage());
+		} catch (RuntimeException e) {
+			System.out.println("Exception occurred in ScrapePipeline task: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,681 @@
+package com.scraper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathFactoryConfigurationException;
+
+import org.jsoup.helper.W3CDom;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.QueryParser;
+import org.jsoup.select.Selector;
+import org.w3c.dom.NodeList;
+
+/**
+ * The scraper config, compiled once when it is read so that scraping a page
+ * only runs the compiled selectors. Selector and data types are parsed into
+ * enums, and XPath selectors are checked and compiled up front instead of by
+ * {@link Element#selectXpath(String)} on every call, which also converts the
+ * whole page to a W3C DOM each time. Here a page is converted at most once,
+ * however many XPath selectors run on it.
+ *
+ * <p>
+ * Most selectors need no XPath at all: {@link #select(Page)} matches the id
+ * selectors and the XPath selectors {@link PathMatcher} can translate in a
+ * single walk over the page, handing each element only to the fields that
+ * select its id or name. CSS selectors are parsed once into jsoup evaluators
+ * and tested on each element of the same walk. The page is converted for the
+ * rest.
+ *
+ * <p>
+ * Compiled XPath expressions are not thread-safe, so each field keeps a pool
+ * of compiled copies. A page borrows one for the time it runs the field and
+ * then returns it, so there are only as many copies as pages scraped at once,
+ * however many threads, virtual or not, the pages run on. The config itself
+ * can be shared by all the scraper threads.
+ */
+public class ScraperConfig {
+	/** Placeholder in an XPath selector replaced by 1, 2, ... to select several elements */
+	public static final String INDEX_PLACEHOLDER = "%d%";
+	/** Constant for default largest index an XPath selector with the placeholder is expanded to */
+	public static final int INDEX_MAX_DEFAULT = 99;
+
+	/**
+	 * How a field finds its elements.
+	 */
+	public enum SelectorType {
+		/** The element with the id */
+		ID,
+		/** The elements matched by an XPath expression */
+		XPATH,
+		/** All the elements matched by a CSS selector, in page order */
+		CSS
+	}
+
+	/**
+	 * What a field takes from each element.
+	 */
+	public enum DataType {
+		/** The text of the element and its children */
+		TEXT,
+		/** The {@code src} attribute */
+		IMAGE,
+		/** An attribute named in the config as {@code attr:<name>}, such as {@code attr:abs:href} */
+		ATTR,
+		/** The text of the element only, without its children; {@code ownText} in the config */
+		OWNTEXT,
+		/** The inner html of the element */
+		HTML
+	}
+
+	/** Prefix of the data type taking an attribute, followed by its name */
+	public static final String ATTR_PREFIX = "attr:";
+
+	/** The compiled fields, in config order */
+	private final List<Field> fields;
+	/** Positions of the fields matched while walking the page, by the id they select */
+	private final Map<String, List<Integer>> byId;
+	/** Positions of the fields matched while walking the page, by the element name they select */
+	private final Map<String, List<Integer>> byName;
+	/** Positions of the fields matched while walking the page that select any element name */
+	private final List<Integer> anyName;
+	/** Positions of the fields with a CSS selector, matched while walking the page */
+	private final List<Integer> css;
+
+	/**
+	 * A field of the config with its selector compiled.
+	 */
+	public static class Field {
+		private final SelectorType selectorType;
+		private final String selectorValue;
+		private final String name;
+		private final String fallbackValue;
+		private final DataType dataType;
+		/** The attribute an {@link DataType#ATTR} field takes, or {@code null} */
+		private final String attribute;
+		/** Whether the XPath selector has the index placeholder */
+		private final boolean indexed;
+		/** Largest index the placeholder is replaced by */
+		private final int maxIndex;
+		/**
+		 * For a placeholder that is a whole predicate, {@code P[%d%]}, the
+		 * expression counting the nodes of P, or {@code null}
+		 */
+		private final String bound;
+		/** Compiled copies of the XPath expressions not in use by a page */
+		private final ConcurrentLinkedQueue<Compiled> expressions;
+		/** The XPath selector as a test of each element, or {@code null} */
+		private final PathMatcher path;
+		/** The parsed CSS selector, or {@code null} */
+		private final Evaluator evaluator;
+
+		private Field(ConfigField field) throws Exception {
+			if (field.getSelectorType() == null || field.getSelectorValue() == null || field.getName() == null || field.getFallbackValue() == null) {
+				throw new Exception("Invalid JSON config for scraper.");
+			}
+			this.selectorType = parse(SelectorType.class, field.getSelectorType(), "selectorType");
+			this.selectorValue = field.getSelectorValue();
+			this.name = field.getName();
+			this.fallbackValue = field.getFallbackValue();
+			String dataType = field.getDataType() != null ? field.getDataType() : "text";
+			if (dataType.regionMatches(true, 0, ATTR_PREFIX, 0, ATTR_PREFIX.length())) {
+				this.dataType = DataType.ATTR;
+				this.attribute = dataType.substring(ATTR_PREFIX.length()).trim();
+				if (this.attribute.isEmpty()) {
+					throw new Exception("Invalid dataType in JSON config for scraper: " + dataType);
+				}
+			} else {
+				this.dataType = parse(DataType.class, dataType, "dataType");
+				this.attribute = null;
+			}
+			this.indexed = this.selectorType == SelectorType.XPATH && this.selectorValue.contains(INDEX_PLACEHOLDER);
+			this.maxIndex = field.getMaxIndex() > 0 ? field.getMaxIndex() : INDEX_MAX_DEFAULT;
+			this.expressions = new ConcurrentLinkedQueue<>();
+
+			Compiled compiled = this.selectorType == SelectorType.XPATH ? new Compiled() : null;
+			if (compiled != null) {
+				// fail on a bad expression now rather than on every page
+				try {
+					compiled.get(this.indexed ? 1 : 0);
+				} catch (XPathExpressionException e) {
+					throw new Exception("Invalid XPath selector for scraper field " + this.name + ": " + this.selectorValue, e);
+				}
+			}
+
+			String prefix = this.indexed ? indexedPath(this.selectorValue) : null;
+			String count = prefix != null ? "count(" + prefix + ")" : null;
+			if (count != null) {
+				try {
+					compiled.xpath.compile(count);
+				} catch (XPathExpressionException e) {
+					// not a path on its own after all; expand every index
+					count = null;
+				}
+			}
+			this.bound = count;
+			if (compiled != null) {
+				this.expressions.offer(compiled);
+			}
+			this.path = this.selectorType == SelectorType.XPATH ? PathMatcher.parse(this.selectorValue) : null;
+
+			if (this.selectorType == SelectorType.CSS) {
+				try {
+					this.evaluator = QueryParser.parse(this.selectorValue);
+				} catch (Selector.SelectorParseException | IllegalArgumentException e) {
+					throw new Exception("Invalid CSS selector for scraper field " + this.name + ": " + this.selectorValue, e);
+				}
+			} else {
+				this.evaluator = null;
+			}
+		}
+
+		public SelectorType getSelectorType() {
+			return this.selectorType;
+		}
+
+		public String getSelectorValue() {
+			return this.selectorValue;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public String getFallbackValue() {
+			return this.fallbackValue;
+		}
+
+		public DataType getDataType() {
+			return this.dataType;
+		}
+
+		public String getAttribute() {
+			return this.attribute;
+		}
+
+		public int getMaxIndex() {
+			return this.maxIndex;
+		}
+
+		/**
+		 * Returns the elements the field takes values from. A CSS selector takes
+		 * every element it matches, in page order. A plain XPath selector only
+		 * counts if it matches exactly one element; a selector with the index
+		 * placeholder adds the element of each index up to the max index that
+		 * matches exactly one, in index order.
+		 *
+		 * <p>
+		 * When the placeholder is a whole predicate of a path, as in
+		 * {@code //ul/li[%d%]}, index i selects the i-th node of some group of
+		 * the nodes {@code //ul/li} selects, so no index past the number of those
+		 * nodes can match. They are counted once and only the indexes up to the
+		 * count are tried, which on a list of three items is four queries rather
+		 * than one per index. A gap does not end the expansion, since a later
+		 * index can still match.
+		 * @param page the page to select from
+		 * @return the elements, empty if none match
+		 */
+		public List<Element> select(Page page) {
+			if (this.selectorType == SelectorType.ID) {
+				Element element = page.document.getElementById(this.selectorValue);
+				return element != null ? List.of(element) : List.of();
+			}
+			if (this.selectorType == SelectorType.CSS) {
+				return page.document.select(this.evaluator);
+			}
+			List<Element> elements = new ArrayList<>();
+			Compiled compiled = this.expressions.poll();
+			if (compiled == null) {
+				compiled = new Compiled();
+			}
+			try {
+				if (this.indexed) {
+					int last = this.count(page, compiled);
+					for (int i = 1; i <= last; i++) {
+						this.selectOne(page, compiled, i, elements);
+					}
+				} else {
+					this.selectOne(page, compiled, 0, elements);
+				}
+			} finally {
+				this.expressions.offer(compiled);
+			}
+			return elements;
+		}
+
+		/**
+		 * Returns the value the field takes from an element.
+		 * @param element the selected element
+		 * @return the value
+		 */
+		public String value(Element element) {
+			switch (this.dataType) {
+			case TEXT:
+				return element.text();
+			case IMAGE:
+				return element.attr("src");
+			case ATTR:
+				return element.attr(this.attribute);
+			case OWNTEXT:
+				return element.ownText();
+			case HTML:
+				return element.html();
+			default:
+				return this.fallbackValue;
+			}
+		}
+
+		/**
+		 * Adds the element the expression selects if it selects exactly one.
+		 * @param page the page to select from
+		 * @param compiled the expressions borrowed for the page
+		 * @param index the expression index
+		 * @param elements where the element is added
+		 */
+		private void selectOne(Page page, Compiled compiled, int index, List<Element> elements) {
+			try {
+				NodeList nodes = (NodeList) compiled.get(index).evaluate(page.contextNode(), XPathConstants.NODESET);
+				if (nodes.getLength() == 1) {
+					elements.addAll(page.w3c.sourceNodes(nodes, Element.class));
+				}
+			} catch (XPathExpressionException e) {
+				throw new IllegalStateException("Could not evaluate XPath selector " + this.selectorValue, e);
+			}
+		}
+
+		/**
+		 * Returns the largest index that can match on a page.
+		 * @param page the page to select from
+		 * @param compiled the expressions borrowed for the page
+		 * @return the number of nodes the path before the placeholder selects, or
+		 *   the max index if the selector has no such path
+		 */
+		private int count(Page page, Compiled compiled) {
+			if (this.bound == null) {
+				return this.maxIndex;
+			}
+			try {
+				Double count = (Double) compiled.get(0).evaluate(page.contextNode(), XPathConstants.NUMBER);
+				return (int) Math.min(this.maxIndex, count);
+			} catch (XPathExpressionException e) {
+				throw new IllegalStateException("Could not evaluate XPath selector " + this.bound, e);
+			}
+		}
+
+		/**
+		 * A copy of the compiled XPath expressions of the field, used by one page
+		 * at a time.
+		 */
+		private class Compiled {
+			/** The compiler the expressions are compiled with */
+			private final XPath xpath;
+			/** Index 0 for a plain selector or the bound, i for the i-th expansion */
+			private XPathExpression[] expressions;
+
+			private Compiled() {
+				this.xpath = newXPath();
+				this.expressions = new XPathExpression[1];
+			}
+
+			/**
+			 * Returns a compiled expression, compiling it on first use.
+			 * @param index 0 for a plain selector or the bound, or the index the
+			 *   placeholder is replaced by
+			 * @return the expression
+			 * @throws XPathExpressionException if the selector is not valid XPath
+			 */
+			private XPathExpression get(int index) throws XPathExpressionException {
+				if (index >= this.expressions.length) {
+					// grown as far as the pages need rather than to the max index
+					this.expressions = Arrays.copyOf(this.expressions, Math.max(index + 1, this.expressions.length * 2));
+				}
+				if (this.expressions[index] == null) {
+					String xpath;
+					if (index == 0) {
+						xpath = Field.this.indexed ? Field.this.bound : Field.this.selectorValue;
+					} else {
+						xpath = Field.this.selectorValue.replace(INDEX_PLACEHOLDER, Integer.toString(index));
+					}
+					this.expressions[index] = this.xpath.compile(xpath);
+				}
+				return this.expressions[index];
+			}
+		}
+	}
+
+	/**
+	 * The elements one field matched while walking a page.
+	 */
+	private static class Matches {
+		/** The first element matched */
+		private Element first;
+		/** Number of elements matched */
+		private int count;
+		/** For an indexed selector, the element of each index, or {@code null} */
+		private final Map<Integer, Element> indexed;
+		/** For an indexed selector, the indexes that matched more than one element */
+		private final Set<Integer> repeated;
+		/** For a CSS selector, every element matched, or {@code null} */
+		private final List<Element> all;
+
+		private Matches(Field field) {
+			this.first = null;
+			this.count = 0;
+			this.indexed = field.indexed ? new TreeMap<>() : null;
+			this.repeated = field.indexed ? new HashSet<>() : null;
+			this.all = field.selectorType == SelectorType.CSS ? new ArrayList<>() : null;
+		}
+
+		/**
+		 * Adds a matched element, in page order.
+		 * @param index the index the element matched at, or 1
+		 * @param element the element
+		 */
+		private void add(int index, Element element) {
+			if (this.count++ == 0) {
+				this.first = element;
+			}
+			if (this.indexed != null && this.indexed.putIfAbsent(index, element) != null) {
+				this.repeated.add(index);
+			}
+			if (this.all != null) {
+				this.all.add(element);
+			}
+		}
+
+		/**
+		 * Returns the elements the field takes values from, as
+		 * {@link Field#select(Page)} does.
+		 * @param field the field
+		 * @return the elements
+		 */
+		private List<Element> select(Field field) {
+			if (this.count == 0) {
+				return List.of();
+			}
+			if (field.selectorType == SelectorType.ID) {
+				return List.of(this.first);
+			}
+			if (this.all != null) {
+				return this.all;
+			}
+			if (!field.indexed) {
+				return this.count == 1 ? List.of(this.first) : List.of();
+			}
+			List<Element> elements = new ArrayList<>();
+			for (Map.Entry<Integer, Element> entry : this.indexed.entrySet()) {
+				if (!this.repeated.contains(entry.getKey())) {
+					elements.add(entry.getValue());
+				}
+			}
+			return elements;
+		}
+	}
+
+	/**
+	 * A page being scraped. The W3C DOM XPath selectors run on is built the first
+	 * time one needs it and shared by the rest.
+	 */
+	public static class Page {
+		private final Document document;
+		private W3CDom w3c;
+		private org.w3c.dom.Node contextNode;
+
+		/**
+		 * Wraps a parsed page
+		 * @param document the page
+		 */
+		public Page(Document document) {
+			this.document = document;
+			this.w3c = null;
+			this.contextNode = null;
+		}
+
+		/**
+		 * Returns the parsed page
+		 * @return the page
+		 */
+		public Document getDocument() {
+			return this.document;
+		}
+
+		/**
+		 * Returns the node XPath selectors run from, converting the page the first
+		 * time.
+		 * @return the context node
+		 */
+		private org.w3c.dom.Node contextNode() {
+			if (this.contextNode == null) {
+				this.w3c = new W3CDom().namespaceAware(false);
+				this.contextNode = this.w3c.contextNode(this.w3c.fromJsoup(this.document));
+			}
+			return this.contextNode;
+		}
+	}
+
+	/**
+	 * Makes an XPath compiler the way jsoup makes one. Only called for a new
+	 * pooled copy of a field's expressions, so the factory lookup is not paid
+	 * per page.
+	 * @return the compiler
+	 */
+	private static XPath newXPath() {
+		try {
+			XPathFactory factory = System.getProperty(W3CDom.XPathFactoryProperty) != null ? XPathFactory.newInstance("jsoup") : XPathFactory.newInstance();
+			return factory.newXPath();
+		} catch (XPathFactoryConfigurationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Compiles the config.
+	 * @param fields the fields as read from JSON
+	 * @throws Exception if a field is missing a value, has an unknown selector or
+	 *   data type, or has an invalid XPath selector
+	 */
+	public ScraperConfig(List<ConfigField> fields) throws Exception {
+		if (fields == null) {
+			throw new Exception("Invalid JSON config for scraper.");
+		}
+		List<Field> compiled = new ArrayList<>();
+		for (ConfigField field : fields) {
+			compiled.add(new Field(field));
+		}
+		this.fields = Collections.unmodifiableList(compiled);
+		this.byId = new HashMap<>();
+		this.byName = new HashMap<>();
+		this.anyName = new ArrayList<>();
+		this.css = new ArrayList<>();
+		for (int i = 0; i < compiled.size(); i++) {
+			Field field = compiled.get(i);
+			if (field.selectorType == SelectorType.ID && !field.selectorValue.isEmpty()) {
+				this.byId.computeIfAbsent(field.selectorValue, k -> new ArrayList<>()).add(i);
+			} else if (field.path != null && field.path.getName() != null) {
+				this.byName.computeIfAbsent(field.path.getName(), k -> new ArrayList<>()).add(i);
+			} else if (field.path != null) {
+				this.anyName.add(i);
+			} else if (field.evaluator != null) {
+				this.css.add(i);
+			}
+		}
+	}
+
+	/**
+	 * Returns the compiled fields, in config order
+	 * @return the fields
+	 */
+	public List<Field> getFields() {
+		return this.fields;
+	}
+
+	/**
+	 * Returns the path an index placeholder selects from, when the placeholder
+	 * appears once, as a whole predicate of the path, and the selector is not a
+	 * union, which could match whatever the index. For {@code //ul/li[%d%]/a}
+	 * that is {@code //ul/li}.
+	 * @param xpath an XPath selector with the placeholder
+	 * @return the path before the predicate, or {@code null}
+	 */
+	private static String indexedPath(String xpath) {
+		int at = xpath.indexOf(INDEX_PLACEHOLDER);
+		if (xpath.indexOf(INDEX_PLACEHOLDER, at + 1) >= 0) {
+			return null;
+		}
+		int open = at - 1;
+		while (open >= 0 && Character.isWhitespace(xpath.charAt(open))) {
+			open--;
+		}
+		int close = at + INDEX_PLACEHOLDER.length();
+		while (close < xpath.length() && Character.isWhitespace(xpath.charAt(close))) {
+			close++;
+		}
+		if (open < 0 || xpath.charAt(open) != '[' || close == xpath.length() || xpath.charAt(close) != ']') {
+			return null;
+		}
+		String prefix = xpath.substring(0, open).trim();
+		if (prefix.isEmpty() || !isPath(prefix) || !isPath(xpath.substring(close + 1))) {
+			return null;
+		}
+		return prefix;
+	}
+
+	/**
+	 * Checks that part of an XPath selector has balanced brackets and quotes and
+	 * no union outside them.
+	 * @param xpath the part of the selector
+	 * @return whether the part is closed and not a union
+	 */
+	private static boolean isPath(String xpath) {
+		int depth = 0;
+		char quote = 0;
+		for (int i = 0; i < xpath.length(); i++) {
+			char c = xpath.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == '[' || c == '(') {
+				depth++;
+			} else if (c == ']' || c == ')') {
+				if (--depth < 0) {
+					return false;
+				}
+			} else if (c == '|' && depth == 0) {
+				return false;
+			}
+		}
+		return depth == 0 && quote == 0;
+	}
+
+	/**
+	 * Returns the elements each field takes values from, as
+	 * {@link Field#select(Page)} does. Id and CSS fields and the XPath fields
+	 * that can be translated are matched in one walk over the page; the others
+	 * run their XPath selector on its W3C copy.
+	 * @param page the page to select from
+	 * @return the elements of each field, in config order
+	 */
+	public List<List<Element>> select(Page page) {
+		Matches[] matches = new Matches[this.fields.size()];
+		if (!this.byId.isEmpty() || !this.byName.isEmpty() || !this.anyName.isEmpty() || !this.css.isEmpty()) {
+			NodeTraversor.traverse((node, depth) -> {
+				if (!(node instanceof Element)) {
+					return;
+				}
+				Element element = (Element) node;
+				// like jsoup's own select, CSS selectors also test the document
+				for (int i : this.css) {
+					this.add(matches, i, this.fields.get(i).evaluator.matches(page.document, element) ? 1 : 0, element);
+				}
+				if (node instanceof Document) {
+					return;
+				}
+				if (!this.byId.isEmpty()) {
+					List<Integer> positions = this.byId.get(element.id());
+					if (positions != null) {
+						for (int i : positions) {
+							this.add(matches, i, 1, element);
+						}
+					}
+				}
+				List<Integer> positions = this.byName.get(element.tagName());
+				if (positions != null) {
+					for (int i : positions) {
+						this.add(matches, i, this.fields.get(i).path.match(element, this.fields.get(i).maxIndex), element);
+					}
+				}
+				for (int i : this.anyName) {
+					this.add(matches, i, this.fields.get(i).path.match(element, this.fields.get(i).maxIndex), element);
+				}
+			}, page.document);
+		}
+
+		List<List<Element>> selected = new ArrayList<>(this.fields.size());
+		for (int i = 0; i < this.fields.size(); i++) {
+			Field field = this.fields.get(i);
+			boolean walked = field.selectorType == SelectorType.ID ? !field.selectorValue.isEmpty() : field.path != null || field.evaluator != null;
+			if (!walked) {
+				selected.add(field.select(page));
+			} else if (matches[i] == null) {
+				selected.add(List.of());
+			} else {
+				selected.add(matches[i].select(field));
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Records an element a field matched.
+	 * @param matches the matches of each field
+	 * @param i the position of the field
+	 * @param index the index the element matched at, or 0 if it did not match
+	 * @param element the element
+	 */
+	private void add(Matches[] matches, int i, int index, Element element) {
+		if (index == 0) {
+			return;
+		}
+		if (matches[i] == null) {
+			matches[i] = new Matches(this.fields.get(i));
+		}
+		matches[i].add(index, element);
+	}
+
+	/**
+	 * Parses an enum constant from a config value, ignoring case.
+	 * @param <T> the enum type
+	 * @param type the enum class
+	 * @param value the config value
+	 * @param key the config key, for the error message
+	 * @return the constant
+	 * @throws Exception if the value is not a constant of the enum
+	 */
+	private static <T extends Enum<T>> T parse(Class<T> type, String value, String key) throws Exception {
+		try {
+			return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			throw new Exception("Invalid " + key + " in JSON config for scraper: " + value);
+		}
+	}
+}
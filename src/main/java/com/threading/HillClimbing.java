@@ -0,0 +1,99 @@
+package com.threading;
+
+/**
+ * Picks the number of workers of a pool from the throughput it measures, in
+ * the style of the hill climbing controller of the .NET thread pool. While
+ * tasks wait for a worker, each interval moves the number of workers one step
+ * in the current direction. The direction is kept while the throughput rises
+ * and reversed once it falls, and adding workers that do not raise the
+ * throughput turns the pool around, so it settles on the fewest workers that
+ * reach the best throughput. The steps double while the throughput keeps
+ * rising, so a pool of network bound tasks quickly grows to hundreds of
+ * workers, and start over at one worker after every reversal.
+ *
+ * <p>
+ * While no task waits, the throughput only follows the rate tasks are added,
+ * so it is not measured; instead, workers that are mostly idle are removed.
+ * See Hellerstein, Morrison and Fuentes, "Optimizing Concurrency Levels in the
+ * .NET ThreadPool" (FeBID 2008).
+ */
+public class HillClimbing {
+	/** Relative change in throughput taken as noise rather than a real change */
+	private static final double NOISE = 0.05;
+
+	/** Utilization below which a pool that keeps up gives up workers */
+	private static final double IDLE = 0.5;
+
+	/** Min number of workers */
+	private final int min;
+
+	/** Max number of workers */
+	private final int max;
+
+	/** 1 while adding workers, -1 while removing them */
+	private int direction;
+
+	/** Number of workers added or removed by the next move */
+	private int step;
+
+	/** Throughput of the last interval tasks waited, or negative if none */
+	private double previous;
+
+	/**
+	 * Initializes a controller that keeps the number of workers within the
+	 * given bounds.
+	 *
+	 * @param min min number of workers; at least 1
+	 * @param max max number of workers; at least min
+	 */
+	public HillClimbing(int min, int max) {
+		this.min = Math.max(1, min);
+		this.max = Math.max(this.min, max);
+		this.direction = 1;
+		this.step = 1;
+		this.previous = -1;
+	}
+
+	/**
+	 * Returns the number of workers to use for the next interval.
+	 *
+	 * @param workers number of workers during the last interval
+	 * @param throughput tasks finished per second during the last interval
+	 * @param backlog whether tasks waited for a worker during the last interval
+	 * @param utilization share of worker time spent running tasks during the
+	 *   last interval, between 0 and 1
+	 * @return the number of workers, within the bounds
+	 */
+	public int next(int workers, double throughput, boolean backlog, double utilization) {
+		if (!backlog) {
+			this.previous = -1;
+			this.direction = 1;
+			this.step = 1;
+			return this.clamp(utilization < IDLE ? workers - Math.max(1, workers / 4) : workers);
+		}
+
+		if (this.previous >= 0) {
+			double change = (throughput - this.previous) / Math.max(this.previous, Double.MIN_NORMAL);
+			if (change < -NOISE || (change <= NOISE && this.direction > 0)) {
+				// the last move hurt, or added workers for nothing: turn around
+				this.direction = -this.direction;
+				this.step = 1;
+			} else if (change > NOISE) {
+				this.step = Math.min(this.step * 2, workers);
+			}
+		}
+
+		this.previous = throughput;
+		return this.clamp(workers + this.direction * this.step);
+	}
+
+	/**
+	 * Returns the number of workers within the bounds.
+	 *
+	 * @param workers a number of workers
+	 * @return the closest number within the bounds
+	 */
+	private int clamp(int workers) {
+		return Math.min(this.max, Math.max(this.min, workers));
+	}
+}
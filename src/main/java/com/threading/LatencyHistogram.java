@@ -0,0 +1,140 @@
+package com.threading;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds with log-linear buckets, in the style
+ * of HdrHistogram: every power of two is split into {@value #SUB_BUCKETS}
+ * equal buckets, so any recorded value is reported within 12.5% of its true
+ * value while the whole range fits in a few hundred counters. Recording never
+ * blocks and costs a couple of atomic adds, so it can be called by every task.
+ */
+public class LatencyHistogram {
+	/** Number of bits of each value kept below its highest set bit */
+	private static final int SUB_BITS = 3;
+	/** Number of buckets per power of two */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** Number of buckets needed for every non-negative long */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	/** Number of values recorded in each bucket */
+	private final AtomicLongArray counts;
+	/** Sum of the values recorded */
+	private final LongAdder sum;
+	/** Largest value recorded */
+	private final AtomicLong max;
+
+	/**
+	 * Initializes an empty histogram.
+	 */
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos the duration in nanoseconds; negative values count as 0
+	 */
+	public void record(long nanos) {
+		nanos = Math.max(0, nanos);
+		this.counts.incrementAndGet(bucket(nanos));
+		this.sum.add(nanos);
+		if (nanos > this.max.get()) {
+			this.max.accumulateAndGet(nanos, Math::max);
+		}
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += this.counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the sum of the values recorded.
+	 *
+	 * @return the sum in nanoseconds
+	 */
+	public long getSum() {
+		return this.sum.sum();
+	}
+
+	/**
+	 * Returns the largest value recorded.
+	 *
+	 * @return the max in nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * Returns the value below which the given share of the recorded values fall,
+	 * rounded up to the end of its bucket.
+	 *
+	 * @param quantile the share, between 0 and 1
+	 * @return the value in nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getQuantile(double quantile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = this.counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), this.getMax());
+			}
+		}
+		return this.getMax();
+	}
+
+	/**
+	 * Returns the bucket of a value.
+	 *
+	 * @param value a non-negative value
+	 * @return the bucket index
+	 */
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the largest value that falls in a bucket.
+	 *
+	 * @param bucket the bucket index
+	 * @return the upper bound of the bucket
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,368 @@
+package com.threading;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Counts the tasks of a {@link TaskQueue} and how long they wait and run.
+ * Queues wrap each added task with {@link #wrap(Runnable)}, which costs a few
+ * clock reads and striped counter updates per task, so the metrics are always
+ * on. The current values can be read through JMX once the metrics are
+ * {@link #register(String) registered}, or all at once as a {@link Snapshot}.
+ */
+public class QueueMetrics implements QueueMetricsMXBean {
+	/** Number of tasks the queue runs at once, guarded by this */
+	private volatile int workers;
+	/** When the queue started, in nanoseconds */
+	private final long created;
+	/** When the number of workers last changed, in nanoseconds, guarded by this */
+	private long resized;
+	/** Worker time up to the last change of the number of workers, guarded by this */
+	private long workerNanos;
+	/** Tasks added */
+	private final LongAdder submitted;
+	/** Tasks started; the queue depth is the tasks added but not started */
+	private final LongAdder started;
+	/** Tasks finished, including failed ones */
+	private final LongAdder completed;
+	/** Tasks that threw an exception */
+	private final LongAdder failed;
+	/** Time from being added to starting */
+	private final LatencyHistogram waitTimes;
+	/** Time from starting to finishing */
+	private final LatencyHistogram runTimes;
+	/** The name registered with JMX, or {@code null} */
+	private ObjectName name;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * The metrics at one moment, for printing or saving in the sweep run file.
+	 * Durations are in milliseconds.
+	 */
+	public static class Snapshot {
+		/** Number of tasks the queue runs at once */
+		private final int workers;
+		/** Time since the queue started */
+		private final double elapsedMillis;
+		/** Tasks added */
+		private final long submitted;
+		/** Tasks finished, including failed ones */
+		private final long completed;
+		/** Tasks that threw an exception */
+		private final long failed;
+		/** Tasks added but not started */
+		private final long queueDepth;
+		/** Tasks started but not finished */
+		private final long running;
+		/** Worker time spent running tasks */
+		private final double busyMillis;
+		/** Worker time spent waiting for tasks */
+		private final double idleMillis;
+		/** Share of the worker time spent running tasks, from 0 to 1 */
+		private final double utilization;
+		/** Tasks finished per second */
+		private final double throughput;
+		/** Median time from being added to starting */
+		private final double waitMillisP50;
+		/** 90th percentile of the time from being added to starting */
+		private final double waitMillisP90;
+		/** 99th percentile of the time from being added to starting */
+		private final double waitMillisP99;
+		/** Longest time from being added to starting */
+		private final double waitMillisMax;
+		/** Median time from starting to finishing */
+		private final double runMillisP50;
+		/** 90th percentile of the time from starting to finishing */
+		private final double runMillisP90;
+		/** 99th percentile of the time from starting to finishing */
+		private final double runMillisP99;
+		/** Longest time from starting to finishing */
+		private final double runMillisMax;
+
+		/**
+		 * Takes a snapshot of the metrics.
+		 *
+		 * @param metrics the metrics to read
+		 */
+		private Snapshot(QueueMetrics metrics) {
+			long now = System.nanoTime();
+			long elapsed = Math.max(1, now - metrics.created);
+			long workerTime = Math.max(1, metrics.getWorkerNanos(now));
+			long busy = metrics.runTimes.getSum();
+			this.workers = metrics.workers;
+			this.elapsedMillis = millis(elapsed);
+			this.completed = metrics.completed.sum();
+			this.failed = metrics.failed.sum();
+			long started = metrics.started.sum();
+			this.submitted = metrics.submitted.sum();
+			this.queueDepth = Math.max(0, this.submitted - started);
+			this.running = Math.max(0, started - this.completed);
+			this.busyMillis = millis(busy);
+			this.idleMillis = Math.max(0, millis(workerTime - busy));
+			this.utilization = Math.min(1, (double) busy / workerTime);
+			this.throughput = this.completed / (elapsed / 1e9);
+			this.waitMillisP50 = millis(metrics.waitTimes.getQuantile(0.5));
+			this.waitMillisP90 = millis(metrics.waitTimes.getQuantile(0.9));
+			this.waitMillisP99 = millis(metrics.waitTimes.getQuantile(0.99));
+			this.waitMillisMax = millis(metrics.waitTimes.getMax());
+			this.runMillisP50 = millis(metrics.runTimes.getQuantile(0.5));
+			this.runMillisP90 = millis(metrics.runTimes.getQuantile(0.9));
+			this.runMillisP99 = millis(metrics.runTimes.getQuantile(0.99));
+			this.runMillisMax = millis(metrics.runTimes.getMax());
+		}
+
+		/**
+		 * Returns the metrics as {@code key=value} lines, in the format of the
+		 * other stats written to the sweep run file.
+		 *
+		 * @param prefix prepended to every key, such as {@code crawlQueue}
+		 * @return the stats
+		 */
+		public List<String> getStats(String prefix) {
+			List<String> stats = new ArrayList<>();
+			stats.add(prefix + "Workers=" + this.workers);
+			stats.add(prefix + "Submitted=" + this.submitted);
+			stats.add(prefix + "Completed=" + this.completed);
+			stats.add(prefix + "Failed=" + this.failed);
+			stats.add(prefix + "QueueDepth=" + this.queueDepth);
+			stats.add(prefix + "Running=" + this.running);
+			stats.add(String.format("%sElapsedMillis=%.0f", prefix, this.elapsedMillis));
+			stats.add(String.format("%sBusyMillis=%.0f", prefix, this.busyMillis));
+			stats.add(String.format("%sIdleMillis=%.0f", prefix, this.idleMillis));
+			stats.add(String.format("%sUtilization=%.3f", prefix, this.utilization));
+			stats.add(String.format("%sThroughput=%.1f", prefix, this.throughput));
+			stats.add(String.format("%sWaitMillis=p50:%.3f,p90:%.3f,p99:%.3f,max:%.3f", prefix,
+					this.waitMillisP50, this.waitMillisP90, this.waitMillisP99, this.waitMillisMax));
+			stats.add(String.format("%sRunMillis=p50:%.3f,p90:%.3f,p99:%.3f,max:%.3f", prefix,
+					this.runMillisP50, this.runMillisP90, this.runMillisP99, this.runMillisMax));
+			return stats;
+		}
+
+		@Override
+		public String toString() {
+			return String.join(" ", this.getStats(""));
+		}
+	}
+
+	/**
+	 * Initializes the metrics of a queue that starts now.
+	 *
+	 * @param workers number of tasks the queue runs at once
+	 */
+	public QueueMetrics(int workers) {
+		this.workers = Math.max(1, workers);
+		this.created = System.nanoTime();
+		this.resized = this.created;
+		this.workerNanos = 0;
+		this.submitted = new LongAdder();
+		this.started = new LongAdder();
+		this.completed = new LongAdder();
+		this.failed = new LongAdder();
+		this.waitTimes = new LatencyHistogram();
+		this.runTimes = new LatencyHistogram();
+		this.name = null;
+	}
+
+	/**
+	 * Counts a task as added and returns it wrapped so that it records its wait
+	 * and run time when it runs. An exception thrown by the task is counted and
+	 * passed on.
+	 *
+	 * @param task the task added to the queue
+	 * @return the task to queue in its place
+	 */
+	public Runnable wrap(Runnable task) {
+		long queued = System.nanoTime();
+		this.submitted.increment();
+		return () -> {
+			long start = System.nanoTime();
+			this.started.increment();
+			this.waitTimes.record(start - queued);
+			try {
+				task.run();
+			} catch (RuntimeException | Error e) {
+				this.failed.increment();
+				throw e;
+			} finally {
+				this.runTimes.record(System.nanoTime() - start);
+				this.completed.increment();
+			}
+		};
+	}
+
+	/**
+	 * Changes the number of tasks the queue runs at once, for queues that resize
+	 * their pool of workers. The idle time and utilization account for the
+	 * number of workers over time.
+	 *
+	 * @param workers number of tasks the queue runs at once from now on
+	 */
+	public synchronized void setWorkers(int workers) {
+		long now = System.nanoTime();
+		this.workerNanos = this.getWorkerNanos(now);
+		this.resized = now;
+		this.workers = Math.max(1, workers);
+	}
+
+	/**
+	 * Returns the worker time since the queue started, which is the time each
+	 * worker was available to run tasks added together.
+	 *
+	 * @param now the current time in nanoseconds
+	 * @return the worker time in nanoseconds
+	 */
+	private synchronized long getWorkerNanos(long now) {
+		return this.workerNanos + (long) this.workers * (now - this.resized);
+	}
+
+	/**
+	 * Returns the number of tasks that started running.
+	 *
+	 * @return the number of tasks started
+	 */
+	public long getStarted() {
+		return this.started.sum();
+	}
+
+	/**
+	 * Returns the total time the started tasks waited before starting.
+	 *
+	 * @return the total wait in nanoseconds
+	 */
+	public long getWaitNanos() {
+		return this.waitTimes.getSum();
+	}
+
+	/**
+	 * Returns the total run time of the finished tasks.
+	 *
+	 * @return the total run time in nanoseconds
+	 */
+	public long getBusyNanos() {
+		return this.runTimes.getSum();
+	}
+
+	/**
+	 * Returns the current metrics.
+	 *
+	 * @return a snapshot of the metrics
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server, so they can be
+	 * watched while the queue runs. A failure is logged and otherwise ignored.
+	 *
+	 * @param queueName the name of the queue, unique among registered queues
+	 */
+	public synchronized void register(String queueName) {
+		try {
+			ObjectName objectName = new ObjectName("com.threading:type=TaskQueue,name=" + ObjectName.quote(queueName));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			this.name = objectName;
+		} catch (JMException e) {
+			System.err.println("Warning: Unable to register queue metrics " + queueName);
+			log.catching(Level.DEBUG, e);
+		}
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server, if registered.
+	 */
+	public synchronized void unregister() {
+		if (this.name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+		} catch (JMException e) {
+			log.catching(Level.DEBUG, e);
+		}
+		this.name = null;
+	}
+
+	@Override
+	public int getWorkers() {
+		return this.workers;
+	}
+
+	@Override
+	public long getSubmitted() {
+		return this.submitted.sum();
+	}
+
+	@Override
+	public long getCompleted() {
+		return this.completed.sum();
+	}
+
+	@Override
+	public long getFailed() {
+		return this.failed.sum();
+	}
+
+	@Override
+	public long getQueueDepth() {
+		long started = this.started.sum();
+		return Math.max(0, this.submitted.sum() - started);
+	}
+
+	@Override
+	public long getRunning() {
+		long completed = this.completed.sum();
+		return Math.max(0, this.started.sum() - completed);
+	}
+
+	@Override
+	public double getThroughput() {
+		return this.snapshot().throughput;
+	}
+
+	@Override
+	public double getUtilization() {
+		return this.snapshot().utilization;
+	}
+
+	@Override
+	public double getWaitMillisP50() {
+		return millis(this.waitTimes.getQuantile(0.5));
+	}
+
+	@Override
+	public double getWaitMillisP99() {
+		return millis(this.waitTimes.getQuantile(0.99));
+	}
+
+	@Override
+	public double getRunMillisP50() {
+		return millis(this.runTimes.getQuantile(0.5));
+	}
+
+	@Override
+	public double getRunMillisP99() {
+		return millis(this.runTimes.getQuantile(0.99));
+	}
+
+	/**
+	 * Converts nanoseconds to milliseconds.
+	 *
+	 * @param nanos the duration in nanoseconds
+	 * @return the duration in milliseconds
+	 */
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+}
@@ -0,0 +1,95 @@
+package com.threading;
+
+/**
+ * The metrics of a {@link TaskQueue} as seen through JMX, for example in
+ * JConsole or VisualVM while a sweep is running. Durations are in
+ * milliseconds.
+ *
+ * @see QueueMetrics#register(String)
+ */
+public interface QueueMetricsMXBean {
+	/**
+	 * Returns the number of tasks the queue runs at once.
+	 *
+	 * @return the number of workers
+	 */
+	int getWorkers();
+
+	/**
+	 * Returns the number of tasks added.
+	 *
+	 * @return the number of tasks added
+	 */
+	long getSubmitted();
+
+	/**
+	 * Returns the number of tasks that finished, including those that failed.
+	 *
+	 * @return the number of tasks finished
+	 */
+	long getCompleted();
+
+	/**
+	 * Returns the number of tasks that threw an exception.
+	 *
+	 * @return the number of tasks failed
+	 */
+	long getFailed();
+
+	/**
+	 * Returns the number of tasks waiting to start.
+	 *
+	 * @return the queue depth
+	 */
+	long getQueueDepth();
+
+	/**
+	 * Returns the number of tasks running.
+	 *
+	 * @return the number of busy workers
+	 */
+	long getRunning();
+
+	/**
+	 * Returns the number of tasks finished per second since the queue started.
+	 *
+	 * @return the throughput
+	 */
+	double getThroughput();
+
+	/**
+	 * Returns the share of worker time spent running tasks since the queue
+	 * started.
+	 *
+	 * @return the utilization, between 0 and 1
+	 */
+	double getUtilization();
+
+	/**
+	 * Returns the median time tasks waited before starting.
+	 *
+	 * @return the median wait in milliseconds
+	 */
+	double getWaitMillisP50();
+
+	/**
+	 * Returns the 99th percentile of the time tasks waited before starting.
+	 *
+	 * @return the 99th percentile wait in milliseconds
+	 */
+	double getWaitMillisP99();
+
+	/**
+	 * Returns the median run time of tasks.
+	 *
+	 * @return the median run time in milliseconds
+	 */
+	double getRunMillisP50();
+
+	/**
+	 * Returns the 99th percentile of the run time of tasks.
+	 *
+	 * @return the 99th percentile run time in milliseconds
+	 */
+	double getRunMillisP99();
+}
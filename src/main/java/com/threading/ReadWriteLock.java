@@ -1,4 +1,5 @@
 package com.threading;
+import java.lang.invoke.VarHandle;
 import java.util.ConcurrentModificationException;
 
 import org.apache.logging.log4j.Level;
@@ -10,6 +11,20 @@ import org.apache.logging.log4j.Logger;
  * for writing. The read lock may be held simultaneously by multiple reader
  * threads, so long as there are no writers. The write lock is exclusive. The
  * active writer is able to acquire read or write locks as long as it is active.
+ *
+ * <p>
+ * Readers that only read a few fields can skip the lock with an optimistic
+ * read, in the style of {@link java.util.concurrent.locks.StampedLock}: take a
+ * stamp with {@link #tryOptimisticRead()}, read the fields into locals, then
+ * use them only if {@link #validate(long)} confirms no writer held the lock in
+ * between, falling back to the read lock otherwise. Optimistic reads never
+ * touch the monitor, so they scale with the number of readers.
+ *
+ * <p>
+ * By default a reader may join other readers while a writer waits, so a
+ * steady stream of readers can starve writers. With writer preference, new
+ * readers wait while a writer waits; a thread holding the read lock must then
+ * not acquire it again, as it would wait on the writer that waits on it.
  */
 public class ReadWriteLock {
 	/** The conditional lock used for reading. */
@@ -27,6 +42,22 @@ public class ReadWriteLock {
 	/** The thread that holds the write lock. */
 	private Thread activeWriter;
 
+	/** The number of threads waiting for the write lock. */
+	private int waitingWriters;
+
+	/** Whether new readers wait while a writer waits. */
+	private final boolean writerPreference;
+
+	/**
+	 * Odd while the write lock is held, and increased every time it is acquired
+	 * or released, so an unchanged even version means no writer came in between.
+	 * Only changed while holding the lock object.
+	 */
+	private volatile long version;
+
+	/** The version the lock starts at, so that a stamp is never 0. */
+	private static final long ORIGIN = 2;
+
 	/** The log4j2 logger. */
 	private static final Logger log = LogManager.getLogger();
 
@@ -41,9 +72,19 @@ public class ReadWriteLock {
 	private final Object lock;
 
 	/**
-	 * Initializes a new simple read/write lock.
+	 * Initializes a new simple read/write lock that lets readers in while a
+	 * writer waits.
 	 */
 	public ReadWriteLock() {
+		this(false);
+	}
+
+	/**
+	 * Initializes a new simple read/write lock.
+	 *
+	 * @param writerPreference whether new readers wait while a writer waits
+	 */
+	public ReadWriteLock(boolean writerPreference) {
 		readerLock = new SimpleReadLock();
 		writerLock = new SimpleWriteLock();
 
@@ -51,8 +92,11 @@ public class ReadWriteLock {
 
 		readers = 0;
 		writers = 0;
+		waitingWriters = 0;
 
 		activeWriter = null;
+		version = ORIGIN;
+		this.writerPreference = writerPreference;
 	}
 
 	/**
@@ -95,6 +139,32 @@ public class ReadWriteLock {
 		}
 	}
 
+	/**
+	 * Returns a stamp to validate reads made without the lock, or 0 if the write
+	 * lock is held.
+	 *
+	 * @return the stamp, or 0 if the write lock is held
+	 *
+	 * @see #validate(long)
+	 */
+	public long tryOptimisticRead() {
+		long stamp = version;
+		return (stamp & 1) == 0 ? stamp : 0;
+	}
+
+	/**
+	 * Determines whether no writer held the lock since the stamp was taken, so the
+	 * values read since then are consistent.
+	 *
+	 * @param stamp the stamp returned by {@link #tryOptimisticRead()}
+	 * @return true if the stamp is not 0 and the lock was not written since
+	 */
+	public boolean validate(long stamp) {
+		// keep the reads made before from moving after the version read
+		VarHandle.acquireFence();
+		return stamp != 0 && version == stamp;
+	}
+
 	/**
 	 * Determines whether the thread running this code and the writer thread are in
 	 * fact the same thread.
@@ -138,7 +208,8 @@ public class ReadWriteLock {
 	private class SimpleReadLock implements SimpleLock {
 		/**
 		 * Controls access to the read lock. The active thread is forced to wait while
-		 * there are any active writers and it is not the active writer thread. Once
+		 * there are any active writers, or waiting writers with writer preference,
+		 * and it is not the active writer thread. Once
 		 * safe, the thread is allowed to acquire a read lock by incrementing the number
 		 * of active readers.
 		 */
@@ -148,7 +219,7 @@ public class ReadWriteLock {
 
 			try {
 				synchronized (lock) {
-					while (writers > 0 && !isActiveWriter()) {
+					while ((writers > 0 || (writerPreference && waitingWriters > 0)) && !isActiveWriter()) {
 						lock.wait();
 					}
 					readers++;
@@ -171,7 +242,7 @@ public class ReadWriteLock {
 		@Override
 		public void unlock() {
 			synchronized (lock) {
-				log.debug("Num readers: " + readers);
+				log.debug("Num readers: {}", readers);
 				if (readers <= 0) throw new IllegalStateException("No readers to unlock");
 				readers--;
 				if (readers <= 0) lock.notifyAll();
@@ -196,8 +267,23 @@ public class ReadWriteLock {
 
 			try {
 				synchronized (lock) {
-					while ((writers > 0 || readers > 0) && !isActiveWriter()) {
-						lock.wait();
+					waitingWriters++;
+					try {
+						while ((writers > 0 || readers > 0) && !isActiveWriter()) {
+							lock.wait();
+						}
+					}
+					catch (InterruptedException ex) {
+						// let in the readers held back for this writer
+						waitingWriters--;
+						lock.notifyAll();
+						throw ex;
+					}
+					waitingWriters--;
+					if (writers == 0) {
+						version++;
+						// keep the writes made under the lock from moving before the version
+						VarHandle.storeStoreFence();
 					}
 					writers++;
 					activeWriter = Thread.currentThread();
@@ -223,13 +309,14 @@ public class ReadWriteLock {
 		public void unlock() throws IllegalStateException, ConcurrentModificationException {
 			synchronized (lock) {
 				if (writers <= 0) throw new IllegalStateException("No writers to unlock");
-				log.debug("Active writer: " + activeWriter);
+				log.debug("Active writer: {}", activeWriter);
 				if (!isActiveWriter()) throw new ConcurrentModificationException("Thread does not hold write lock");
 				
 				log.debug("Unlocking write lock...");
 				writers--;
 				if (writers <= 0) {
 					activeWriter = null;
+					version++;
 					lock.notifyAll();
 				}
 				log.debug("Write lock unlocked...");
@@ -0,0 +1,62 @@
+package com.threading;
+
+/**
+ * Runs work (or tasks) in the background. It is up to the user of a queue to
+ * keep track of whether there is any pending work remaining, and to wait for
+ * it with {@link #finish()} before reading the results.
+ *
+ * @see WorkQueue
+ * @see VirtualWorkQueue
+ */
+public interface TaskQueue {
+	/**
+	 * Adds a work (or task) request to the queue. The task will run when the
+	 * queue has capacity for it.
+	 *
+	 * @param task work request (in the form of a {@link Runnable} object)
+	 */
+	void execute(Runnable task);
+
+	/**
+	 * Waits for all pending work (or tasks) to be finished. The queue can
+	 * continue to be used afterwards.
+	 */
+	void finish();
+
+	/**
+	 * Waits for all the work to be finished and then shuts the queue down. The
+	 * queue cannot be reused after this call completes.
+	 */
+	void join();
+
+	/**
+	 * Asks the queue to shutdown. Any unprocessed work (or tasks) will not be
+	 * finished, but tasks in-progress will not be interrupted.
+	 */
+	void shutdown();
+
+	/**
+	 * Returns the number of tasks the queue runs at once.
+	 *
+	 * @return max number of tasks running at once
+	 */
+	int size();
+
+	/**
+	 * Returns the max number of tasks waiting in the queue. Adding a task to a
+	 * full queue waits for room or runs the task in the caller.
+	 *
+	 * @return max number of waiting tasks, or {@code 0} if the queue is
+	 *   unbounded
+	 */
+	default int getCapacity() {
+		return 0;
+	}
+
+	/**
+	 * Returns the metrics of the tasks added to this queue.
+	 *
+	 * @return the queue metrics
+	 */
+	QueueMetrics getMetrics();
+}
@@ -0,0 +1,189 @@
+package com.threading;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A work queue that runs every task on its own virtual thread instead of on a
+ * fixed set of platform worker threads. A task blocked on the network only
+ * parks its virtual thread, so thousands of tasks can wait on slow servers at
+ * the cost of a few kilobytes each. A semaphore limits how many tasks run at
+ * once, so that raising the concurrency does not overload the sites crawled;
+ * tasks over the limit park until a running task finishes.
+ *
+ * <p>
+ * A task that blocks while holding a monitor (inside a {@code synchronized}
+ * block) pins its carrier thread, so tasks should wait on the network or on
+ * {@link java.util.concurrent} locks rather than inside {@code synchronized}.
+ *
+ * @see WorkQueue
+ */
+public class VirtualWorkQueue implements TaskQueue {
+	/** Constant for default number of tasks running at once */
+	public static final int LIMIT_DEFAULT = 256;
+
+	/** Creates the virtual thread for each task */
+	private final ThreadFactory factory;
+
+	/** Permits for the tasks running at once */
+	private final Semaphore permits;
+
+	/** Max number of tasks running at once */
+	private final int limit;
+
+	/** Counts the tasks and times how long they wait and run. */
+	private final QueueMetrics metrics;
+
+	/** Used to signal the tasks not yet started should not run. */
+	private volatile boolean shutdown;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** Keeps track of pending tasks left */
+	private int pending;
+
+	/**
+	 * Starts a work queue with the default limit.
+	 *
+	 * @see #VirtualWorkQueue(int)
+	 */
+	public VirtualWorkQueue() {
+		this(LIMIT_DEFAULT);
+	}
+
+	/**
+	 * Starts a work queue that runs at most the given number of tasks at once.
+	 *
+	 * @param limit max number of tasks running at once; should be at least 1
+	 */
+	public VirtualWorkQueue(int limit) {
+		this.limit = limit < 1 ? LIMIT_DEFAULT : limit;
+		this.permits = new Semaphore(this.limit);
+		this.metrics = new QueueMetrics(this.limit);
+		this.factory = Thread.ofVirtual().name("VirtualWorker-", 0).factory();
+		this.shutdown = false;
+		this.pending = 0;
+
+		log.debug("Virtual work queue initialized with a limit of {} tasks.", this.limit);
+	}
+
+	/**
+	 * Increments the number of pending tasks
+	 */
+	private synchronized void incrementPending() {
+		this.pending++;
+	}
+
+	/**
+	 * Decrements the number of pending tasks
+	 */
+	private synchronized void decrementPending() {
+		assert pending > 0;
+		pending--;
+		if (pending == 0) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Starts a virtual thread for the task right away; the thread waits for a
+	 * permit before running the task. Tasks added after {@link #shutdown()} are
+	 * ignored.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		if (shutdown) {
+			log.debug("Virtual work queue ignoring task after shutdown.");
+			return;
+		}
+		this.incrementPending();
+		Runnable timed = metrics.wrap(task);
+		factory.newThread(() -> this.run(timed)).start();
+	}
+
+	/**
+	 * Runs a task once a permit is free, unless the queue was shut down while
+	 * waiting.
+	 *
+	 * @param task the task to run
+	 */
+	private void run(Runnable task) {
+		try {
+			permits.acquire();
+			try {
+				if (!shutdown) {
+					log.trace("Virtual work queue running work.");
+					task.run();
+				}
+			} finally {
+				permits.release();
+			}
+		} catch (InterruptedException e) {
+			System.err.printf("Warning: %s interrupted while waiting.%n", Thread.currentThread().getName());
+			log.catching(Level.DEBUG, e);
+		} catch (RuntimeException e) {
+			System.err.printf("Warning: %s encountered an exception while running.%n", Thread.currentThread().getName());
+			log.catching(Level.DEBUG, e);
+		} finally {
+			decrementPending();
+		}
+	}
+
+	@Override
+	public synchronized void finish() {
+		while (pending > 0) {
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				System.err.println("Warning: Virtual work queue interrupted while finishing.");
+				log.catching(Level.DEBUG, e);
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Every task has its own thread, so once the pending work is finished there
+	 * are no threads left to wait for.
+	 */
+	@Override
+	public void join() {
+		finish();
+		shutdown();
+		log.debug("All virtual threads terminated.");
+	}
+
+	@Override
+	public void shutdown() {
+		// safe to do unsynchronized due to volatile keyword
+		shutdown = true;
+		log.debug("Virtual work queue triggering shutdown...");
+	}
+
+	/**
+	 * Returns the max number of tasks running at once.
+	 *
+	 * @return the concurrency limit
+	 */
+	@Override
+	public int size() {
+		return limit;
+	}
+
+	@Override
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+}
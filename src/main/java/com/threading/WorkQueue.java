@@ -1,7 +1,11 @@
 package com.threading;
 
+import java.time.Duration;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -12,17 +16,33 @@ import org.apache.logging.log4j.Logger;
  * Brian Goetz. It is up to the user of this class to keep track of whether
  * there is any pending work remaining.
  *
+ * <p>
+ * The queue may be bounded, in which case {@link #execute(Runnable)} applies
+ * a {@link FullPolicy} once the queue is full, and {@link #offer(Runnable, long,
+ * TimeUnit)} gives up after a timeout. A worker thread adding a task to its own
+ * full queue always runs the task itself, since waiting would leave nobody to
+ * make room if every worker did the same.
+ *
+ * <p>
+ * Given a range of threads, the queue adapts the number of workers within the
+ * range: every {@link #ADJUST_INTERVAL} a {@link HillClimbing} controller
+ * looks at the throughput and the time tasks waited, then starts workers or
+ * asks idle ones to exit.
+ *
  * @see <a href=
  *   "https://web.archive.org/web/20210126172022/https://www.ibm.com/developerworks/library/j-jtp0730/index.html">
  *   Java Theory and Practice: Thread Pools and Work Queues</a>
  */
-public class WorkQueue {
+public class WorkQueue implements TaskQueue {
 	/** Workers that wait until work (or tasks) are available. */
-	private final Worker[] workers;
+	private final List<Worker> workers;
 
 	/** Queue of pending work (or tasks). */
 	private final LinkedList<Runnable> tasks;
 
+	/** Counts the tasks and times how long they wait and run. */
+	private final QueueMetrics metrics;
+
 	/** Exceptions captured from executing tasks */
 	private final Stack<Exception> exceptions;
 
@@ -32,6 +52,43 @@ public class WorkQueue {
 	/** The default number of worker threads to use when not specified. */
 	public static final int DEFAULT = 5;
 
+	/** Capacity of a queue that is never full. */
+	public static final int UNBOUNDED = 0;
+
+	/** Max number of tasks waiting in the queue, or {@link #UNBOUNDED}. */
+	private final int capacity;
+
+	/** What {@link #execute(Runnable)} does once the queue is full. */
+	private final FullPolicy policy;
+
+	/** How often an adaptive queue adjusts its number of workers. */
+	public static final Duration ADJUST_INTERVAL = Duration.ofMillis(500);
+
+	/** Min number of worker threads. */
+	private final int minThreads;
+
+	/** Max number of worker threads; more than the min if adaptive. */
+	private final int maxThreads;
+
+	/** Number of worker threads the queue is meant to have. */
+	private volatile int threads;
+
+	/** Number of workers asked to exit but not yet exited, guarded by tasks. */
+	private int retiring;
+
+	/** Adjusts the number of workers, or {@code null} if fixed. */
+	private final Controller controller;
+
+	/**
+	 * What to do with a task added to a bounded queue that is full.
+	 */
+	public enum FullPolicy {
+		/** Wait until a worker takes a task from the queue. */
+		BLOCK,
+		/** Run the task in the thread that added it. */
+		CALLER_RUNS
+	}
+
 	/** Logger used for this class. */
 	private static final Logger log = LogManager.getLogger();
 
@@ -48,25 +105,101 @@ public class WorkQueue {
 	}
 
 	/**
-	 * Starts a work queue with the specified number of threads.
+	 * Starts an unbounded work queue with the specified number of threads.
 	 *
 	 * @param threads number of worker threads; should be greater than 1
 	 */
 	public WorkQueue(int threads) {
-		threads = threads < 1 ? DEFAULT : threads;
+		this(threads, UNBOUNDED, FullPolicy.BLOCK);
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads that holds at
+	 * most the given number of waiting tasks.
+	 *
+	 * @param threads number of worker threads; should be greater than 1
+	 * @param capacity max number of waiting tasks, or {@link #UNBOUNDED}
+	 * @param policy what {@link #execute(Runnable)} does once the queue is full
+	 */
+	public WorkQueue(int threads, int capacity, FullPolicy policy) {
+		this(threads, threads, capacity, policy);
+	}
+
+	/**
+	 * Starts a work queue with the min number of threads that adapts its number
+	 * of threads within the given range, and holds at most the given number of
+	 * waiting tasks.
+	 *
+	 * @param minThreads min number of worker threads; should be at least 1
+	 * @param maxThreads max number of worker threads; the queue is adaptive if
+	 *   more than minThreads
+	 * @param capacity max number of waiting tasks, or {@link #UNBOUNDED}
+	 * @param policy what {@link #execute(Runnable)} does once the queue is full
+	 */
+	public WorkQueue(int minThreads, int maxThreads, int capacity, FullPolicy policy) {
+		this.minThreads = minThreads < 1 ? DEFAULT : minThreads;
+		this.maxThreads = Math.max(this.minThreads, maxThreads);
+		this.capacity = Math.max(UNBOUNDED, capacity);
+		this.policy = policy;
 		this.tasks = new LinkedList<Runnable>();
 		this.exceptions = new Stack<Exception>();
-		this.workers = new Worker[threads];
+		this.workers = new CopyOnWriteArrayList<Worker>();
+		this.metrics = new QueueMetrics(this.minThreads);
+		this.threads = this.minThreads;
+		this.retiring = 0;
 		this.shutdown = false;
 		this.pending = 0;
 
 		// start the threads so they are waiting in the background
-		for (int i = 0; i < threads; i++) {
-			workers[i] = new Worker();
-			workers[i].start();
+		for (int i = 0; i < this.minThreads; i++) {
+			this.startWorker();
 		}
 
-		log.debug("Work queue initialized with {} worker threads.", workers.length);
+		if (this.maxThreads > this.minThreads) {
+			this.controller = new Controller();
+			this.controller.start();
+			log.debug("Work queue initialized with {} to {} worker threads.", this.minThreads, this.maxThreads);
+		} else {
+			this.controller = null;
+			log.debug("Work queue initialized with {} worker threads.", this.minThreads);
+		}
+	}
+
+	/**
+	 * Starts a new worker thread.
+	 */
+	private void startWorker() {
+		Worker worker = new Worker();
+		workers.add(worker);
+		worker.start();
+	}
+
+	/**
+	 * Changes the number of worker threads, starting new ones or asking idle
+	 * ones to exit once they finish their task. Does nothing after a shutdown.
+	 *
+	 * @param count the new number of worker threads
+	 */
+	private void resize(int count) {
+		synchronized (tasks) {
+			if (shutdown) {
+				return;
+			}
+			int current = workers.size() - retiring;
+			if (count > current) {
+				// keep workers asked to exit before starting new ones
+				int kept = Math.min(retiring, count - current);
+				retiring -= kept;
+				for (int i = current + kept; i < count; i++) {
+					this.startWorker();
+				}
+			} else if (count < current) {
+				retiring += current - count;
+				tasks.notifyAll();
+			}
+			this.threads = count;
+			metrics.setWorkers(count);
+		}
 	}
 	
 	/**
@@ -89,15 +222,85 @@ public class WorkQueue {
 
 	/**
 	 * Adds a work (or task) request to the queue. A worker thread will process
-	 * this request when available.
+	 * this request when available. If the queue is full, either waits for room
+	 * or runs the task in the calling thread, depending on the policy.
 	 *
 	 * @param task work request (in the form of a {@link Runnable} object)
 	 */
+	@Override
 	public void execute(Runnable task) {
-		this.incrementPending();
+		try {
+			if (this.add(task, policy == FullPolicy.BLOCK ? Long.MAX_VALUE : 0)) {
+				return;
+			}
+		} catch (InterruptedException e) {
+			System.err.println("Warning: Work queue interrupted while waiting for room.");
+			log.catching(Level.DEBUG, e);
+			Thread.currentThread().interrupt();
+		}
+		this.runInCaller(metrics.wrap(task));
+	}
+
+	/**
+	 * Adds a work (or task) request to the queue, waiting up to the timeout for
+	 * room if the queue is full.
+	 *
+	 * @param task work request (in the form of a {@link Runnable} object)
+	 * @param timeout how long to wait for room
+	 * @param unit the unit of the timeout
+	 * @return {@code true} if the task was added, {@code false} if the queue was
+	 *   still full after the timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+		return this.add(task, unit.toNanos(timeout));
+	}
+
+	/**
+	 * Adds the task if there is room, waiting up to the given time for room.
+	 * Worker threads of this queue never wait.
+	 *
+	 * @param task the task to add
+	 * @param nanos max time to wait for room, in nanoseconds
+	 * @return {@code true} if the task was added
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private boolean add(Runnable task, long nanos) throws InterruptedException {
 		synchronized (tasks) {
-			tasks.addLast(task);
+			if (capacity != UNBOUNDED && tasks.size() >= capacity) {
+				if (Thread.currentThread() instanceof Worker worker && worker.getQueue() == this) {
+					return false;
+				}
+				long deadline = System.nanoTime() + nanos;
+				while (tasks.size() >= capacity && !shutdown) {
+					long left = deadline - System.nanoTime();
+					if (left <= 0) {
+						return false;
+					}
+					log.debug("Work queue full, waiting for room...");
+					TimeUnit.NANOSECONDS.timedWait(tasks, left);
+				}
+			}
+			this.incrementPending();
+			tasks.addLast(metrics.wrap(task));
 			tasks.notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * Runs a task that did not fit in the queue in the calling thread.
+	 *
+	 * @param task the task to run
+	 */
+	private void runInCaller(Runnable task) {
+		try {
+			log.trace("Work queue full, running work in caller.");
+			task.run();
+		}
+		catch (RuntimeException e) {
+			System.err.printf("Warning: %s encountered an exception while running.%n", Thread.currentThread().getName());
+			log.catching(Level.DEBUG, e);
 		}
 	}
 
@@ -105,6 +308,7 @@ public class WorkQueue {
 	 * Waits for all pending work (or tasks) to be finished. Does not terminate
 	 * the worker threads so that the work queue can continue to be used.
 	 */
+	@Override
 	public synchronized void finish() {
 		while (pending > 0) {
 			try {
@@ -120,6 +324,7 @@ public class WorkQueue {
 	 * the worker threads to terminate. The work queue cannot be reused after this
 	 * call completes.
 	 */
+	@Override
 	public void join() {
 		try {
 			finish();
@@ -142,6 +347,7 @@ public class WorkQueue {
 	 * Asks the queue to shutdown. Any unprocessed work (or tasks) will not be
 	 * finished, but threads in-progress will not be interrupted.
 	 */
+	@Override
 	public void shutdown() {
 		// safe to do unsynchronized due to volatile keyword
 		shutdown = true;
@@ -150,17 +356,32 @@ public class WorkQueue {
 		synchronized (tasks) {
 			tasks.notifyAll();
 		}
+		if (controller != null) {
+			controller.interrupt();
+		}
 	}
 
 	/**
-	 * Returns the number of worker threads being used by the work queue.
+	 * Returns the number of worker threads being used by the work queue. For an
+	 * adaptive queue, this changes as the queue runs.
 	 *
 	 * @return number of worker threads
 	 */
+	@Override
 	public int size() {
-		return workers.length;
+		return threads;
 	}
 	
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	@Override
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+
 	/**
 	 * Returns the exceptions from the queue
 	 * @return stack of the exceptions
@@ -186,6 +407,15 @@ public class WorkQueue {
 			setName("Worker" + getName());
 		}
 
+		/**
+		 * Returns the queue this worker belongs to.
+		 *
+		 * @return the queue
+		 */
+		private WorkQueue getQueue() {
+			return WorkQueue.this;
+		}
+
 		@Override
 		public void run() {
 			Runnable task = null;
@@ -193,21 +423,32 @@ public class WorkQueue {
 			try {
 				while (true) {
 					synchronized (tasks) {
-						while (tasks.isEmpty() && !shutdown) {
+						while (tasks.isEmpty() && !shutdown && retiring == 0) {
 							log.debug("Work queue worker waiting...");
 							tasks.wait();
 						}
 
-						// exit while for one of two reasons:
-						// (a) queue has work, or (b) shutdown has been called
+						// exit while for one of three reasons: (a) queue has work,
+						// (b) shutdown has been called, or (c) a worker should exit
 
 						if (shutdown) {
 							log.debug("Worker detected shutdown...");
 							break;
 						}
+
+						if (retiring > 0) {
+							log.debug("Worker retiring...");
+							retiring--;
+							workers.remove(this);
+							break;
+						}
 						else {
 							log.debug("Worker found {} tasks...", tasks.size());
 							task = tasks.removeFirst();
+							if (capacity != UNBOUNDED) {
+								// wake any producer waiting for room
+								tasks.notifyAll();
+							}
 						}
 					}
 
@@ -234,4 +475,68 @@ public class WorkQueue {
 			log.debug("Worker thread terminating...");
 		}
 	}
+
+	/**
+	 * Every {@link #ADJUST_INTERVAL}, measures the throughput and time tasks
+	 * waited during the interval and resizes the queue to the number of
+	 * workers picked by a {@link HillClimbing} controller. Tasks waited if any
+	 * is still queued, or if they waited a tenth of their run time on average.
+	 */
+	private class Controller extends Thread {
+		/**
+		 * Initializes the controller thread with a custom name. It does not keep
+		 * the JVM running.
+		 */
+		public Controller() {
+			setName("WorkQueueController" + getName());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			HillClimbing climbing = new HillClimbing(minThreads, maxThreads);
+			long last = System.nanoTime();
+			long completed = metrics.getCompleted();
+			long started = metrics.getStarted();
+			long waited = metrics.getWaitNanos();
+			long busy = metrics.getBusyNanos();
+
+			try {
+				while (!shutdown) {
+					Thread.sleep(ADJUST_INTERVAL.toMillis());
+
+					long now = System.nanoTime();
+					long nowCompleted = metrics.getCompleted();
+					long nowStarted = metrics.getStarted();
+					long nowWaited = metrics.getWaitNanos();
+					long nowBusy = metrics.getBusyNanos();
+					long elapsed = Math.max(1, now - last);
+					long finished = nowCompleted - completed;
+
+					double throughput = finished / (elapsed / 1e9);
+					double utilization = Math.min(1, (double) (nowBusy - busy) / elapsed / threads);
+					double meanWait = (double) (nowWaited - waited) / Math.max(1, nowStarted - started);
+					double meanRun = (double) (nowBusy - busy) / Math.max(1, finished);
+					boolean backlog = metrics.getQueueDepth() > 0 || meanWait > meanRun / 10;
+
+					int current = threads;
+					int next = climbing.next(current, throughput, backlog, utilization);
+					if (next != current) {
+						log.debug("Work queue resizing from {} to {} worker threads ({} tasks/s).", current, next, throughput);
+						resize(next);
+					}
+
+					last = now;
+					completed = nowCompleted;
+					started = nowStarted;
+					waited = nowWaited;
+					busy = nowBusy;
+				}
+			}
+			catch (InterruptedException e) {
+				// interrupted by shutdown
+				log.debug("Work queue controller interrupted.");
+			}
+		}
+	}
 }
@@ -0,0 +1,308 @@
+package com.threading;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A work queue where each worker thread has its own deque of tasks instead of
+ * all workers sharing one synchronized list. A task added by a worker goes to
+ * the front of that worker's deque and is run by it next; tasks added from
+ * outside go to a shared submission queue. A worker with nothing to do takes
+ * from the submission queue, then steals from the back of another worker's
+ * deque, and only then parks.
+ *
+ * <p>
+ * Adding a task only wakes a parked worker if no other worker is already
+ * looking for a task, and a worker that finds a task wakes the next one, so a
+ * burst of tasks wakes workers one at a time instead of all at once. The
+ * pending count is an atomic counter, so a monitor is only taken when the count
+ * drops to zero and {@link #finish()} may have to be woken. This suits many
+ * workers running very short tasks, where {@link WorkQueue} spends most of its
+ * time on lock contention and waking every worker.
+ *
+ * @see WorkQueue
+ */
+public class WorkStealingQueue implements TaskQueue {
+	/** Workers that run tasks from their own deque or steal from the others. */
+	private final Worker[] workers;
+
+	/** Tasks added by threads that are not workers of this queue. */
+	private final ConcurrentLinkedQueue<Runnable> submissions;
+
+	/** Workers that are parked or about to park. */
+	private final ConcurrentLinkedQueue<Worker> idle;
+
+	/** Keeps track of pending tasks left */
+	private final AtomicLong pending;
+
+	/** Number of workers awake and looking for a task */
+	private final AtomicInteger searching;
+
+	/** Counts the tasks and times how long they wait and run. */
+	private final QueueMetrics metrics;
+
+	/** Used to signal the workers should terminate. */
+	private volatile boolean shutdown;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * Starts a work queue with the default number of threads.
+	 *
+	 * @see #WorkStealingQueue(int)
+	 */
+	public WorkStealingQueue() {
+		this(WorkQueue.DEFAULT);
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads.
+	 *
+	 * @param threads number of worker threads; should be at least 1
+	 */
+	public WorkStealingQueue(int threads) {
+		threads = threads < 1 ? WorkQueue.DEFAULT : threads;
+		this.submissions = new ConcurrentLinkedQueue<>();
+		this.idle = new ConcurrentLinkedQueue<>();
+		this.pending = new AtomicLong();
+		this.searching = new AtomicInteger(threads);
+		this.workers = new Worker[threads];
+		this.metrics = new QueueMetrics(threads);
+		this.shutdown = false;
+
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker();
+		}
+		for (Worker worker : workers) {
+			worker.start();
+		}
+
+		log.debug("Work stealing queue initialized with {} worker threads.", workers.length);
+	}
+
+	/**
+	 * Decrements the number of pending tasks, waking {@link #finish()} if none
+	 * are left.
+	 */
+	private void decrementPending() {
+		if (pending.decrementAndGet() == 0) {
+			synchronized (this) {
+				this.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		task = metrics.wrap(task);
+		pending.incrementAndGet();
+		if (Thread.currentThread() instanceof Worker worker && worker.getQueue() == this) {
+			worker.tasks.addFirst(task);
+		} else {
+			submissions.add(task);
+		}
+		if (searching.get() == 0) {
+			wakeOne();
+		}
+	}
+
+	/**
+	 * Wakes one parked worker, if there is one, counting it as searching.
+	 */
+	private void wakeOne() {
+		Worker parked;
+		while ((parked = idle.poll()) != null) {
+			// skip workers that took themselves out of the idle workers
+			if (parked.queued.compareAndSet(true, false)) {
+				searching.incrementAndGet();
+				LockSupport.unpark(parked);
+				return;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void finish() {
+		while (pending.get() > 0) {
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				System.err.println("Warning: Work stealing queue interrupted while finishing.");
+				log.catching(Level.DEBUG, e);
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void join() {
+		try {
+			finish();
+			shutdown();
+
+			for (Worker worker : workers) {
+				worker.join();
+			}
+
+			log.debug("All worker threads terminated.");
+		}
+		catch (InterruptedException e) {
+			System.err.println("Warning: Work stealing queue interrupted while joining.");
+			log.catching(Level.DEBUG, e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		// safe to do unsynchronized due to volatile keyword
+		shutdown = true;
+
+		log.debug("Work stealing queue triggering shutdown...");
+		for (Worker worker : workers) {
+			LockSupport.unpark(worker);
+		}
+	}
+
+	@Override
+	public int size() {
+		return workers.length;
+	}
+
+	@Override
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Runs tasks from its own deque, the submission queue, or the deques of the
+	 * other workers, parking when there are none. A worker is counted as
+	 * searching from when it runs out of tasks until it finds one or parks.
+	 */
+	private class Worker extends Thread {
+		/** Tasks added by this worker; the front is run next, thieves take from the back. */
+		private final ConcurrentLinkedDeque<Runnable> tasks;
+
+		/** Whether this worker is parked in the idle workers and may be woken. */
+		private final AtomicBoolean queued;
+
+		/**
+		 * Initializes a worker thread with a custom name.
+		 */
+		public Worker() {
+			setName("StealingWorker" + getName());
+			this.tasks = new ConcurrentLinkedDeque<>();
+			this.queued = new AtomicBoolean(false);
+		}
+
+		/**
+		 * Returns the queue this worker belongs to.
+		 *
+		 * @return the queue
+		 */
+		private WorkStealingQueue getQueue() {
+			return WorkStealingQueue.this;
+		}
+
+		@Override
+		public void run() {
+			boolean awake = true;
+			while (!shutdown) {
+				Runnable task = next();
+				if (task != null) {
+					if (awake) {
+						awake = false;
+						if (searching.decrementAndGet() == 0 && hasWork()) {
+							wakeOne();
+						}
+					}
+					try {
+						task.run();
+					}
+					catch (RuntimeException e) {
+						// catch runtime exceptions to avoid leaking threads
+						System.err.printf("Warning: %s encountered an exception while running.%n", this.getName());
+						log.catching(Level.DEBUG, e);
+					} finally {
+						decrementPending();
+					}
+					continue;
+				}
+
+				if (!awake) {
+					awake = true;
+					searching.incrementAndGet();
+					continue;
+				}
+
+				// join the idle workers before giving up, then check again so
+				// that a task added after the last look is not missed
+				queued.set(true);
+				idle.add(this);
+				searching.decrementAndGet();
+				if (hasWork() && queued.compareAndSet(true, false)) {
+					idle.remove(this);
+					searching.incrementAndGet();
+					continue;
+				}
+				while (queued.get() && !shutdown) {
+					log.debug("Work stealing queue worker parking...");
+					LockSupport.park(this);
+				}
+				// woken by wakeOne, which counted this worker as searching
+			}
+
+			log.debug("Worker thread terminating...");
+		}
+
+		/**
+		 * Takes the next task to run, stealing one if there is no other.
+		 *
+		 * @return the task, or {@code null} if no task was found
+		 */
+		private Runnable next() {
+			Runnable task = tasks.pollFirst();
+			if (task == null) {
+				task = submissions.poll();
+			}
+			if (task == null && workers.length > 1) {
+				int start = ThreadLocalRandom.current().nextInt(workers.length);
+				for (int i = 0; i < workers.length && task == null; i++) {
+					Worker victim = workers[(start + i) % workers.length];
+					if (victim != this) {
+						task = victim.tasks.pollLast();
+					}
+				}
+			}
+			return task;
+		}
+
+		/**
+		 * Returns {@code true} if any task is waiting to run.
+		 *
+		 * @return {@code true} if there is work
+		 */
+		private boolean hasWork() {
+			if (!submissions.isEmpty()) {
+				return true;
+			}
+			for (Worker worker : workers) {
+				if (!worker.tasks.isEmpty()) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}